@@ -0,0 +1,15 @@
+package graph_summarization;
+
+/**
+ * 基准测试使用的数据集，都是 data 目录下对称化之后的 webgraph 图
+ * 数据目录默认是当前目录下的 data，可以通过 -Ddata.dir=... 修改
+ */
+public class Datasets {
+
+    /**
+     * 返回数据集的 basename，如 enron 对应 data/enron/enron-sym
+     */
+    public static String basename(String dataset) {
+        return System.getProperty("data.dir", "data") + "/" + dataset + "/" + dataset + "-sym";
+    }
+}
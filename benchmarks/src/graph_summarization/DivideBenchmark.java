@@ -0,0 +1,60 @@
+package graph_summarization;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分组阶段中每个顶点(超点)的开销：SWeG 的 shingleValue 以及 LDME 的签名计算(包括旋转填充和指纹)
+ * 先运行一次 dividePhase 确定随机重排和旋转方向，之后反复计算随机抽取的顶点
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g"})
+public class DivideBenchmark {
+    // 抽取的顶点数量，必须是2的幂
+    static final int NODES = 4096;
+
+    @Param({"enron", "wordassociation-2011", "cnr-2000"})
+    String dataset;
+
+    @Param({"16"})
+    int signatureLength;
+
+    SWeG sweg;
+    LDME ldme;
+    int[] nodes;
+    int cursor;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        sweg = new SWeG(Datasets.basename(dataset));
+        sweg.setSeed(7);
+        sweg.dividePhase();
+        ldme = new LDME(Datasets.basename(dataset), signatureLength);
+        ldme.setSeed(7);
+        ldme.dividePhase();
+        nodes = new int[NODES];
+        for (int i = 0; i < NODES; i++) nodes[i] = ldme.random.nextInt(ldme.n);
+    }
+
+    private int next() {
+        cursor = (cursor + 1) & (NODES - 1);
+        return nodes[cursor];
+    }
+
+    @Benchmark
+    public int shingleValue() {
+        return sweg.shingleValue(next());
+    }
+
+    @Benchmark
+    public long computeSignature() {
+        int A = next();
+        ldme.computeSignature(A);
+        return ldme.F_OPH.fingerprint[A];
+    }
+}
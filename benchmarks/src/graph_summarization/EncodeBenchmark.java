@@ -0,0 +1,46 @@
+package graph_summarization;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 编码阶段 encodePhase_new 的整体耗时
+ * 编码前先运行 iterations 轮 LDME 的分组和合并，使超点的结构接近实际的情况；编码不修改超点，所以可以重复测量
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g"})
+public class EncodeBenchmark {
+
+    @Param({"enron", "wordassociation-2011", "cnr-2000"})
+    String dataset;
+
+    @Param({"1"})
+    int iterations;
+
+    @Param({"1"})
+    int threads;
+
+    LDME ldme;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        ldme = new LDME(Datasets.basename(dataset), 16);
+        ldme.setSeed(7);
+        ldme.setThreads(threads);
+        for (int it = 1; it <= iterations; it++) {
+            ldme.dividePhase();
+            ldme.mergePhase(1 / ((it + 1) * 1.0));
+        }
+    }
+
+    @Benchmark
+    public int encodePhase_new() {
+        ldme.encodePhase_new();
+        return ldme.P_0.size() + ldme.Cp_0.size() + ldme.Cm_0.size();
+    }
+}
@@ -0,0 +1,100 @@
+package graph_summarization;
+
+import it.unimi.dsi.webgraph.ImmutableGraph;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 合并阶段中每个候选顶点对的开销：computeSaving、computeJacSim、updateW、createW 以及 updateSuperNode
+ * 候选顶点对是随机抽取的 two-hops 顶点对，与 Greedy 和合并阶段实际遇到的顶点对相似，所有超点都是单个顶点
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g"})
+public class SavingBenchmark {
+    // 抽取的顶点对数量，必须是2的幂
+    static final int PAIRS = 4096;
+
+    @Param({"enron", "wordassociation-2011", "cnr-2000"})
+    String dataset;
+
+    Summary summary;
+    int[] pair_A, pair_B;
+    WeightVector[] w_A, w_B;
+    int cursor;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        summary = new Summary(Datasets.basename(dataset));
+        summary.setSeed(7);
+        ImmutableGraph graph = summary.Gr;
+        pair_A = new int[PAIRS];
+        pair_B = new int[PAIRS];
+        w_A = new WeightVector[PAIRS];
+        w_B = new WeightVector[PAIRS];
+        for (int i = 0; i < PAIRS; ) {
+            int u = summary.random.nextInt(summary.n);
+            int degree = graph.outdegree(u);
+            if (degree == 0) continue;
+            int w = graph.successorArray(u)[summary.random.nextInt(degree)];
+            int x = graph.successorArray(w)[summary.random.nextInt(graph.outdegree(w))];
+            if (x == u) continue;
+            pair_A[i] = Math.min(u, x);
+            pair_B[i] = Math.max(u, x);
+            w_A[i] = summary.createW(pair_A[i]);
+            w_B[i] = summary.createW(pair_B[i]);
+            i++;
+        }
+    }
+
+    private int next() {
+        cursor = (cursor + 1) & (PAIRS - 1);
+        return cursor;
+    }
+
+    @Benchmark
+    public double computeSaving() {
+        int i = next();
+        return summary.computeSaving(w_A[i], w_B[i], pair_A[i], pair_B[i]);
+    }
+
+    @Benchmark
+    public double computeJacSim() {
+        int i = next();
+        return summary.computeJacSim(w_A[i], w_B[i]);
+    }
+
+    @Benchmark
+    public WeightVector updateW() {
+        int i = next();
+        return summary.updateW(w_A[i], w_B[i]);
+    }
+
+    @Benchmark
+    public WeightVector createW() {
+        return summary.createW(pair_A[next()]);
+    }
+
+    /**
+     * 合并一对超点之后立即恢复，使得每次调用面对的都是单个顶点的超点，测量的时间包括恢复的几次写入
+     */
+    @Benchmark
+    public int updateSuperNode() {
+        int i = next();
+        int a = pair_A[i], b = pair_B[i];
+        int tail_a = summary.tail.get(a);
+        int J_tail_a = summary.J.get(tail_a), I_b = summary.I.get(b), size_a = summary.size.get(a), S_b = summary.S.get(b);
+        summary.updateSuperNode(a, b);
+        int merged = summary.size.get(a);
+        summary.J.set(tail_a, J_tail_a);
+        summary.tail.set(a, tail_a);
+        summary.I.set(b, I_b);
+        summary.size.set(a, size_a);
+        summary.S.set(b, S_b);
+        return merged;
+    }
+}
@@ -0,0 +1,292 @@
+package graph_summarization;
+
+import com.martiansoftware.jsap.*;
+
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.*;
+
+/**
+ * 端到端的基准测试：在若干个数据集上分别运行 SWeG、LDME 和 Greedy，记录每个阶段的耗时、堆内存峰值、GC 耗时以及最终的压缩率，
+ * 结果可以写成 CSV 和 JSON 文件；给定一个之前的 CSV 结果作为基线时，列出比基线差超过容忍度的指标，有退化时以状态码1退出
+ * <p>
+ * CSV 文件每行是一次运行的一个指标：algorithm,dataset,run,metric,value，指标包括
+ * phase.&lt;阶段名&gt;(秒)、total_seconds、peak_heap_bytes、gc_millis 和 compression
+ * 同一个指标在基线和本次结果中都取多次运行的中位数进行比较
+ */
+public class BenchmarkRunner {
+
+    /**
+     * 一次运行的结果
+     */
+    static class Result {
+        String algorithm;
+        String dataset;
+        int run;
+        LinkedHashMap<String, Double> phases;
+        double total_seconds;
+        long peak_heap_bytes;
+        long gc_millis;
+        double compression;
+
+        /**
+         * 按 CSV 中的顺序列出所有指标
+         */
+        LinkedHashMap<String, Double> metrics() {
+            LinkedHashMap<String, Double> metrics = new LinkedHashMap<>();
+            for (Map.Entry<String, Double> phase : phases.entrySet()) metrics.put("phase." + phase.getKey(), phase.getValue());
+            metrics.put("total_seconds", total_seconds);
+            metrics.put("peak_heap_bytes", (double) peak_heap_bytes);
+            metrics.put("gc_millis", (double) gc_millis);
+            metrics.put("compression", compression);
+            return metrics;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        SimpleJSAP jsap = new SimpleJSAP(BenchmarkRunner.class.getName(),
+                "Runs the summarization algorithms on the given graphs and records per-phase time, peak heap, GC time and compression.",
+                new Parameter[]{
+                        new FlaggedOption("algorithms", JSAP.STRING_PARSER, "sweg,ldme,greedy", JSAP.NOT_REQUIRED, 'a', "algorithms", "Comma-separated algorithms to run (sweg, ldme, greedy)."),
+                        new FlaggedOption("iterations", JSAP.INTEGER_PARSER, "5", JSAP.NOT_REQUIRED, 'i', "iterations", "Iterations of each algorithm; encode and evaluate run after the last one."),
+                        new FlaggedOption("signatureLength", JSAP.INTEGER_PARSER, "16", JSAP.NOT_REQUIRED, 'k', "signature-length", "Signature length of LDME."),
+                        new FlaggedOption("maxGroupSize", JSAP.INTEGER_PARSER, "0", JSAP.NOT_REQUIRED, 'g', "max-group-size", "Group size cap of SWeG's divide phase (0 for no cap)."),
+                        new FlaggedOption("levels", JSAP.INTEGER_PARSER, "1", JSAP.NOT_REQUIRED, 'l', "levels", "Levels of LDME's hierarchical grouping (1 for flat grouping)."),
+                        new FlaggedOption("splitSize", JSAP.INTEGER_PARSER, "500", JSAP.NOT_REQUIRED, 'S', "split-size", "Groups larger than this are split with the next level's signature."),
+                        new FlaggedOption("sketchGroupSize", JSAP.INTEGER_PARSER, "0", JSAP.NOT_REQUIRED, 'K', "sketch-group-size", "Merge groups at least this large use the sketch candidate index (0 to disable)."),
+                        new FlaggedOption("incrementalRounds", JSAP.INTEGER_PARSER, "0", JSAP.NOT_REQUIRED, 'R', "incremental-rounds", "Rounds of shingles/signatures precomputed by the incremental divide of SWeG and LDME (0 to disable)."),
+                        new FlaggedOption("hubDegree", JSAP.INTEGER_PARSER, "0", JSAP.NOT_REQUIRED, 'H', "hub-degree", "Vertices above this degree are hubs: sampled neighbours when grouping, cached W vectors, no two-hop expansion in Greedy (0 to disable)."),
+                        new FlaggedOption("adjacencyCache", JSAP.LONG_PARSER, "0", JSAP.NOT_REQUIRED, 'C', "adjacency-cache", "Decode the graph into an off-heap CSR cache of at most this many bytes (0 to read the mapped graph)."),
+                        new Switch("offHeap", 'O', "off-heap", "Keep the supernode state, the per-vertex scratch arrays and the signature matrices in direct memory (sort keys stay on heap)."),
+                        new FlaggedOption("offHeapDirectory", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, JSAP.NOT_REQUIRED, 'M', "off-heap-directory", "Keep the supernode state in files mapped from this directory."),
+                        new FlaggedOption("errorBound", JSAP.DOUBLE_PARSER, "0", JSAP.NOT_REQUIRED, 'e', "error-bound", "Lossy mode: allowed neighbourhood error per vertex as a fraction of its degree (0 for lossless)."),
+                        new FlaggedOption("warmup", JSAP.INTEGER_PARSER, "0", JSAP.NOT_REQUIRED, 'w', "warmup", "Unrecorded runs before the measured ones."),
+                        new FlaggedOption("repeat", JSAP.INTEGER_PARSER, "1", JSAP.NOT_REQUIRED, 'r', "repeat", "Measured runs."),
+                        new FlaggedOption("threads", JSAP.INTEGER_PARSER, "1", JSAP.NOT_REQUIRED, 't', "threads", "Threads of the parallel phases."),
+                        new FlaggedOption("seed", JSAP.LONG_PARSER, "7", JSAP.NOT_REQUIRED, 's', "seed", "Random seed, the same for every run."),
+                        new FlaggedOption("csv", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, JSAP.NOT_REQUIRED, 'c', "csv", "Write the results to this CSV file."),
+                        new FlaggedOption("json", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, JSAP.NOT_REQUIRED, 'j', "json", "Write the results to this JSON file."),
+                        new FlaggedOption("baseline", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, JSAP.NOT_REQUIRED, 'b', "baseline", "Compare with a CSV file written by a previous run."),
+                        new FlaggedOption("tolerance", JSAP.DOUBLE_PARSER, "0.1", JSAP.NOT_REQUIRED, 'T', "tolerance", "Relative change tolerated before a metric counts as regressed."),
+                        new Switch("verbose", 'v', "verbose", "Keep the output of the algorithms."),
+                        new UnflaggedOption("basename", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, JSAP.REQUIRED, JSAP.GREEDY, "Basenames of the (symmetric) graphs."),
+                });
+        JSAPResult config = jsap.parse(args);
+        if (jsap.messagePrinted()) System.exit(1);
+
+        String[] algorithms = config.getString("algorithms").split(",");
+        int iterations = config.getInt("iterations");
+        int warmup = config.getInt("warmup");
+        int repeat = config.getInt("repeat");
+        boolean verbose = config.getBoolean("verbose");
+
+        List<Result> results = new ArrayList<>();
+        for (String basename : config.getStringArray("basename")) {
+            for (String algorithm : algorithms) {
+                for (int run = -warmup; run < repeat; run++) {
+                    Summary summary = create(algorithm, basename, config.getInt("signatureLength"));
+                    summary.setThreads(config.getInt("threads"));
+                    summary.setAdjacencyCache(config.getLong("adjacencyCache"));
+                    if (config.getBoolean("offHeap") || config.userSpecified("offHeapDirectory"))
+                        summary.setOffHeap(config.getString("offHeapDirectory"));
+                    summary.setSeed(config.getLong("seed"));
+                    summary.setSketchSearch(config.getInt("sketchGroupSize"));
+                    summary.setHubDegree(config.getInt("hubDegree"));
+                    summary.setErrorBound(config.getDouble("errorBound"));
+                    if (summary instanceof SWeG) {
+                        ((SWeG) summary).setMaxGroupSize(config.getInt("maxGroupSize"));
+                        ((SWeG) summary).setIncrementalDivide(config.getInt("incrementalRounds"));
+                    }
+                    if (summary instanceof LDME) {
+                        ((LDME) summary).setHierarchy(config.getInt("levels"), config.getInt("splitSize"));
+                        ((LDME) summary).setIncrementalDivide(config.getInt("incrementalRounds"));
+                    }
+                    Result result = measure(summary, iterations, verbose);
+                    if (summary.pool != null) summary.pool.shutdown();
+                    result.algorithm = algorithm;
+                    result.dataset = new File(basename).getName();
+                    result.run = run;
+                    System.out.println(String.format("%s %s %s: %.3f seconds, peak heap %d MB, gc %d ms, compression %.5f %s",
+                            algorithm, result.dataset, run < 0 ? "warmup" : "run " + run, result.total_seconds,
+                            result.peak_heap_bytes >> 20, result.gc_millis, result.compression, result.phases));
+                    if (run >= 0) results.add(result);
+                }
+            }
+        }
+
+        if (config.userSpecified("csv")) writeCSV(results, config.getString("csv"));
+        if (config.userSpecified("json")) writeJSON(results, config.getString("json"));
+        if (config.userSpecified("baseline")) {
+            int regressions = compare(readCSV(config.getString("baseline")), toRows(results), config.getDouble("tolerance"));
+            if (regressions > 0) System.exit(1);
+        }
+    }
+
+    static Summary create(String algorithm, String basename, int signatureLength) throws Exception {
+        switch (algorithm.trim().toLowerCase()) {
+            case "sweg":
+                return new SWeG(basename);
+            case "ldme":
+                return new LDME(basename, signatureLength);
+            case "greedy":
+                return new Greedy(basename);
+            default:
+                throw new IllegalArgumentException("unknown algorithm: " + algorithm);
+        }
+    }
+
+    /**
+     * 运行一次算法，只在最后一轮迭代之后编码和评价
+     */
+    static Result measure(Summary summary, int iterations, boolean verbose) {
+        System.gc();
+        List<MemoryPoolMXBean> heap_pools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heap_pools.add(pool);
+            }
+        }
+        long gc_start = gcMillis();
+        PrintStream out = System.out;
+        if (!verbose) System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+        long startTime = System.nanoTime();
+        try {
+            summary.run(iterations, iterations);
+        } finally {
+            System.setOut(out);
+        }
+        Result result = new Result();
+        result.total_seconds = (System.nanoTime() - startTime) / 1e9;
+        result.gc_millis = gcMillis() - gc_start;
+        // 各个堆内存池的峰值不一定同时出现，它们的和是整个堆峰值的一个上界
+        for (MemoryPoolMXBean pool : heap_pools) result.peak_heap_bytes += pool.getPeakUsage().getUsed();
+        result.phases = new LinkedHashMap<>(summary.phase_seconds);
+        result.compression = summary.compression;
+        return result;
+    }
+
+    static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) millis += Math.max(0, gc.getCollectionTime());
+        return millis;
+    }
+
+    /**
+     * 把结果展开成 CSV 的行：algorithm,dataset,run,metric,value
+     */
+    static List<String[]> toRows(List<Result> results) {
+        List<String[]> rows = new ArrayList<>();
+        for (Result result : results) {
+            for (Map.Entry<String, Double> metric : result.metrics().entrySet()) {
+                rows.add(new String[]{result.algorithm, result.dataset, String.valueOf(result.run), metric.getKey(), String.valueOf(metric.getValue())});
+            }
+        }
+        return rows;
+    }
+
+    static void writeCSV(List<Result> results, String filename) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new FileWriter(filename))) {
+            writer.println("algorithm,dataset,run,metric,value");
+            for (String[] row : toRows(results)) writer.println(String.join(",", row));
+        }
+    }
+
+    static List<String[]> readCSV(String filename) throws IOException {
+        List<String[]> rows = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
+            String line = reader.readLine();
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                String[] row = line.split(",");
+                if (row.length != 5) throw new IOException("malformed line in " + filename + ": " + line);
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+
+    static void writeJSON(List<Result> results, String filename) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new FileWriter(filename))) {
+            writer.println("[");
+            for (int i = 0; i < results.size(); i++) {
+                Result result = results.get(i);
+                StringBuilder phases = new StringBuilder();
+                for (Map.Entry<String, Double> phase : result.phases.entrySet()) {
+                    if (phases.length() > 0) phases.append(", ");
+                    phases.append('"').append(phase.getKey()).append("\": ").append(phase.getValue());
+                }
+                writer.print(String.format(Locale.ROOT,
+                        "  {\"algorithm\": \"%s\", \"dataset\": \"%s\", \"run\": %d, \"phases\": {%s}, \"total_seconds\": %s, \"peak_heap_bytes\": %d, \"gc_millis\": %d, \"compression\": %s}",
+                        result.algorithm, result.dataset, result.run, phases, result.total_seconds, result.peak_heap_bytes, result.gc_millis, result.compression));
+                writer.println(i + 1 < results.size() ? "," : "");
+            }
+            writer.println("]");
+        }
+    }
+
+    /**
+     * 按 (algorithm, dataset, metric) 分别取中位数比较，压缩率越低越差，其他指标越高越差
+     * 太小的耗时(小于0.05秒或者50毫秒的 GC)波动很大，不参与比较
+     *
+     * @return 退化的指标数量
+     */
+    static int compare(List<String[]> baseline_rows, List<String[]> current_rows, double tolerance) {
+        Map<String, Double> baseline = medians(baseline_rows);
+        Map<String, Double> current = medians(current_rows);
+        int regressions = 0;
+        System.out.println(String.format("# Compare with baseline (tolerance %.1f%%)", tolerance * 100));
+        for (Map.Entry<String, Double> entry : current.entrySet()) {
+            Double before = baseline.get(entry.getKey());
+            if (before == null) continue;
+            double after = entry.getValue();
+            String metric = entry.getKey().substring(entry.getKey().lastIndexOf(',') + 1);
+            boolean regressed;
+            if (metric.equals("compression")) {
+                regressed = after < before * (1 - tolerance);
+            } else {
+                if (metric.equals("gc_millis") ? before < 50 : !metric.equals("peak_heap_bytes") && before < 0.05) continue;
+                regressed = after > before * (1 + tolerance);
+            }
+            double change = before == 0 ? 0 : (after - before) / before * 100;
+            System.out.println(String.format("%s %s: %s -> %s (%+.1f%%)", regressed ? "REGRESSION" : "ok        ",
+                    entry.getKey().replace(',', ' '), format(before), format(after), change));
+            if (regressed) regressions++;
+        }
+        System.out.println("@Regressions: " + regressions);
+        return regressions;
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? String.valueOf((long) value) : String.format("%.5f", value);
+    }
+
+    /**
+     * 每个 (algorithm, dataset, metric) 在多次运行中的中位数，key 是 "algorithm,dataset,metric"
+     */
+    static Map<String, Double> medians(List<String[]> rows) {
+        LinkedHashMap<String, List<Double>> values = new LinkedHashMap<>();
+        for (String[] row : rows) {
+            values.computeIfAbsent(row[0] + "," + row[1] + "," + row[3], key -> new ArrayList<>()).add(Double.parseDouble(row[4]));
+        }
+        LinkedHashMap<String, Double> medians = new LinkedHashMap<>();
+        for (Map.Entry<String, List<Double>> entry : values.entrySet()) {
+            List<Double> list = entry.getValue();
+            Collections.sort(list);
+            int middle = list.size() / 2;
+            medians.put(entry.getKey(), list.size() % 2 == 1 ? list.get(middle) : (list.get(middle - 1) + list.get(middle)) / 2);
+        }
+        return medians;
+    }
+}
@@ -0,0 +1,74 @@
+package graph_summarization;
+
+/**
+ * 从内存映射的文件中按位读取，是 BitWriter 的逆过程
+ * 每个 BitReader 只保存一个读取位置，开销很小，可以为每次查询单独创建
+ */
+public class BitReader {
+    private final MappedBytes bytes;
+    // 下一个要读的位在文件中的位置
+    private long position;
+
+    /**
+     * @param bytes    映射的文件
+     * @param position 开始读取的位置，以位为单位，从文件开头算起
+     */
+    public BitReader(MappedBytes bytes, long position) {
+        this.bytes = bytes;
+        this.position = position;
+    }
+
+    public long position() {
+        return position;
+    }
+
+    public void position(long position) {
+        this.position = position;
+    }
+
+    public int readBit() {
+        int b = bytes.getByte(position >>> 3);
+        int bit = (b >>> (7 - (int) (position & 7))) & 1;
+        position++;
+        return bit;
+    }
+
+    /**
+     * 读取 len 位(不超过64)，高位在前，每次处理一个字节中剩余的位
+     */
+    public long readBits(int len) {
+        long value = 0;
+        while (len > 0) {
+            int b = bytes.getByte(position >>> 3) & 0xFF;
+            int avail = 8 - (int) (position & 7);
+            int take = Math.min(avail, len);
+            value = (value << take) | ((b >>> (avail - take)) & ((1 << take) - 1));
+            position += take;
+            len -= take;
+        }
+        return value;
+    }
+
+    public long readGamma() {
+        // 按字节数出前导0的个数
+        int msb = 0;
+        while (true) {
+            int avail = 8 - (int) (position & 7);
+            int b = bytes.getByte(position >>> 3) & ((1 << avail) - 1);
+            if (b != 0) {
+                int zeros = Integer.numberOfLeadingZeros(b) - (32 - avail);
+                msb += zeros;
+                position += zeros + 1;
+                break;
+            }
+            msb += avail;
+            position += avail;
+        }
+        return ((1L << msb) | readBits(msb)) - 1;
+    }
+
+    public long readDelta() {
+        int msb = (int) readGamma();
+        return ((1L << msb) | readBits(msb)) - 1;
+    }
+}
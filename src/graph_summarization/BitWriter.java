@@ -0,0 +1,97 @@
+package graph_summarization;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 按位写出的输出流，支持 Elias-γ 和 Elias-δ 编码，编码方式与 webgraph 的 BV 格式一致：
+ * γ(x) 先写 floor(log2(x+1)) 个0，再写 x+1 的二进制；δ(x) 用 γ 编码 x+1 的位数减一，再写 x+1 去掉最高位的部分
+ * 所有编码的参数都必须是非负数
+ */
+public class BitWriter {
+    private final OutputStream out;
+    // 还没有写出的不满一个字节的位
+    private int current;
+    private int free = 8;
+    // 已经写出的总位数
+    private long written_bits;
+
+    public BitWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    public long writtenBits() {
+        return written_bits;
+    }
+
+    public void writeBit(int bit) throws IOException {
+        current = (current << 1) | (bit & 1);
+        written_bits++;
+        if (--free == 0) {
+            out.write(current);
+            current = 0;
+            free = 8;
+        }
+    }
+
+    /**
+     * 写出 value 的低 len 位，高位在前
+     */
+    public void writeBits(long value, int len) throws IOException {
+        while (len > 0) {
+            int take = Math.min(free, len);
+            len -= take;
+            current = (current << take) | (int) ((value >>> len) & ((1 << take) - 1));
+            written_bits += take;
+            free -= take;
+            if (free == 0) {
+                out.write(current);
+                current = 0;
+                free = 8;
+            }
+        }
+    }
+
+    public void writeGamma(long x) throws IOException {
+        long y = x + 1;
+        int msb = 63 - Long.numberOfLeadingZeros(y);
+        writeBits(0, msb);
+        writeBits(y, msb + 1);
+    }
+
+    public void writeDelta(long x) throws IOException {
+        long y = x + 1;
+        int msb = 63 - Long.numberOfLeadingZeros(y);
+        writeGamma(msb);
+        writeBits(y, msb);
+    }
+
+    public static int gammaLength(long x) {
+        int msb = 63 - Long.numberOfLeadingZeros(x + 1);
+        return 2 * msb + 1;
+    }
+
+    public static int deltaLength(long x) {
+        int msb = 63 - Long.numberOfLeadingZeros(x + 1);
+        return gammaLength(msb) + msb;
+    }
+
+    /**
+     * 用0补齐到整字节并写出，之后的写入从新的字节开始
+     */
+    public void align() throws IOException {
+        if (free != 8) writeBits(0, free);
+    }
+
+    /**
+     * 用0补齐到第 position 位，之后的写入从这个位置开始
+     */
+    public void padTo(long position) throws IOException {
+        while (written_bits < position) writeBits(0, (int) Math.min(32, position - written_bits));
+    }
+
+    public void flush() throws IOException {
+        align();
+        out.flush();
+    }
+}
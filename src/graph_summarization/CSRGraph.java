@@ -0,0 +1,152 @@
+package graph_summarization;
+
+import it.unimi.dsi.webgraph.ImmutableGraph;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * 把 BVGraph 一次性解码成堆外的 CSR 邻接表：顶点v的邻居是 targets[offsets[v], offsets[v+1])
+ * 之后每次访问邻居只需要一次批量拷贝，不再重复解码压缩的比特流，也不会像 BVGraph.successorArray 那样每次分配新的数组
+ * successorArray 返回的数组属于图对象本身，下一次调用时会被覆盖，长度可能大于度数，调用者必须按 outdegree 读取
+ * 和 webgraph 的其他图一样，同一个对象不能被多个线程同时访问，每个线程通过 copy() 得到自己的视图，视图共享底层的堆外内存
+ */
+public class CSRGraph extends ImmutableGraph {
+    // targets 按 2^28 个 int(1GB) 分段，边数可以超过 2^31
+    private static final int CHUNK_SHIFT = 28;
+    private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+    // offsets 按 2^27 个 long(1GB) 分段，ByteBuffer 的容量是 int，n 达到 2^28 时整个 offsets 放不进一个缓冲区
+    private static final int OFFSET_SHIFT = 27;
+    private static final int OFFSET_MASK = (1 << OFFSET_SHIFT) - 1;
+
+    private final int n;
+    private final LongBuffer[] offsets;
+    private final IntBuffer[] targets;
+    // successorArray 返回的缓冲区，只在遇到更大的度数时才重新分配
+    private int[] buffer = new int[16];
+
+    private CSRGraph(int n, LongBuffer[] offsets, IntBuffer[] targets) {
+        this.n = n;
+        this.offsets = offsets;
+        this.targets = targets;
+    }
+
+    /**
+     * 存储图 g 的 CSR 邻接表需要的堆外内存字节数
+     */
+    public static long bytes(ImmutableGraph g) {
+        return (g.numNodes() + 1L) * Long.BYTES + g.numArcs() * Integer.BYTES;
+    }
+
+    /**
+     * 并行解码图 g，每一段使用自己的 g.copy()：先统计每一段的边数，再按段的前缀和写入 offsets 和 targets
+     * 堆外内存不足时 ByteBuffer.allocateDirect 抛出 OutOfMemoryError，由调用者决定是否退回到原来的图
+     *
+     * @param g     要解码的图，需要支持随机访问
+     * @param pool  线程池，为null时单线程执行
+     * @param parts 并行时切分的段数
+     */
+    public static CSRGraph load(ImmutableGraph g, ForkJoinPool pool, int parts) {
+        int n = g.numNodes();
+        long m = g.numArcs();
+        LongBuffer[] offsets = new LongBuffer[(int) ((n + 1L + OFFSET_MASK) >>> OFFSET_SHIFT)];
+        for (int c = 0; c < offsets.length; c++) {
+            long length = Math.min(OFFSET_MASK + 1L, n + 1L - ((long) c << OFFSET_SHIFT));
+            offsets[c] = allocate(length * Long.BYTES).asLongBuffer();
+        }
+        IntBuffer[] targets = new IntBuffer[(int) ((m + CHUNK_MASK) >>> CHUNK_SHIFT)];
+        for (int c = 0; c < targets.length; c++) {
+            long length = Math.min(CHUNK_MASK + 1, m - ((long) c << CHUNK_SHIFT));
+            targets[c] = allocate(length * Integer.BYTES).asIntBuffer();
+        }
+
+        long[] part_arcs = new long[parts + 1];
+        Parallel.forRange(pool, parts, n, (part, start, end) -> {
+            ImmutableGraph graph = g.copy();
+            long count = 0;
+            for (int v = start; v < end; v++) count += graph.outdegree(v);
+            part_arcs[part + 1] = count;
+        });
+        for (int part = 0; part < parts; part++) part_arcs[part + 1] += part_arcs[part];
+        if (part_arcs[parts] != m)
+            throw new IllegalStateException("the graph has " + part_arcs[parts] + " arcs instead of " + m);
+
+        Parallel.forRange(pool, parts, n, (part, start, end) -> {
+            ImmutableGraph graph = g.copy();
+            long pos = part_arcs[part];
+            for (int v = start; v < end; v++) {
+                offsets[v >>> OFFSET_SHIFT].put(v & OFFSET_MASK, pos);
+                int[] neighbours = graph.successorArray(v);
+                int degree = graph.outdegree(v);
+                for (int i = 0; i < degree; i++, pos++) {
+                    targets[(int) (pos >>> CHUNK_SHIFT)].put((int) (pos & CHUNK_MASK), neighbours[i]);
+                }
+            }
+        });
+        offsets[n >>> OFFSET_SHIFT].put(n & OFFSET_MASK, m);
+        return new CSRGraph(n, offsets, targets);
+    }
+
+    private static ByteBuffer allocate(long bytes) {
+        return ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder());
+    }
+
+    private long offset(int v) {
+        return offsets[v >>> OFFSET_SHIFT].get(v & OFFSET_MASK);
+    }
+
+    @Override
+    public int numNodes() {
+        return n;
+    }
+
+    @Override
+    public long numArcs() {
+        return offset(n);
+    }
+
+    @Override
+    public boolean randomAccess() {
+        return true;
+    }
+
+    @Override
+    public int outdegree(int v) {
+        return (int) (offset(v + 1) - offset(v));
+    }
+
+    @Override
+    public int[] successorArray(int v) {
+        long start = offset(v);
+        int degree = (int) (offset(v + 1) - start);
+        if (buffer.length < degree) buffer = new int[Math.max(degree, buffer.length * 2)];
+        int copied = 0;
+        while (copied < degree) {
+            long pos = start + copied;
+            IntBuffer chunk = targets[(int) (pos >>> CHUNK_SHIFT)];
+            int offset = (int) (pos & CHUNK_MASK);
+            int length = Math.min(degree - copied, chunk.limit() - offset);
+            // 转成 Buffer 调用，JDK 9 之后 IntBuffer.position 的返回类型变了，直接调用编译出的类在 JDK 8 上找不到方法
+            ((Buffer) chunk).position(offset);
+            chunk.get(buffer, copied, length);
+            copied += length;
+        }
+        return buffer;
+    }
+
+    /**
+     * 返回一个新的视图，共享堆外内存，但有自己的读取位置和缓冲区，可以交给另一个线程使用
+     */
+    @Override
+    public CSRGraph copy() {
+        LongBuffer[] offset_views = new LongBuffer[offsets.length];
+        for (int c = 0; c < offsets.length; c++) offset_views[c] = offsets[c].duplicate();
+        IntBuffer[] views = new IntBuffer[targets.length];
+        for (int c = 0; c < targets.length; c++) views[c] = targets[c].duplicate();
+        return new CSRGraph(n, offset_views, views);
+    }
+}
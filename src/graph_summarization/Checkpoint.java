@@ -0,0 +1,159 @@
+package graph_summarization;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+
+/**
+ * 合并状态的检查点：每轮合并结束之后的 S、I、J、tail、size，已经完成的迭代次数、这一轮的阈值以及随机数生成器的状态
+ * 文件头还记录了运行参数(迭代次数、输出间隔、LDME 的签名长度)，恢复时必须相同，以及这一轮的编码和存储是否已经完成，没有完成时恢复后先补上
+ * 从检查点恢复之后，接下来的迭代与没有中断时完全相同(增量分组预先计算的 shingle 值和签名不保存，恢复后重新计算，结果会不同)
+ * <p>
+ * 文件依次包含：
+ * (1)文件头，见下面的 HEADER_* 常量
+ * (2)算法名(UTF-8)和序列化的 java.util.Random
+ * (3)从8字节对齐的位置开始，依次是 S、I、J、tail、size 五个长度为 n 的 int 数组
+ * 和 SummaryFile 一样按大端序写出，可以通过 MappedBytes 映射后直接读取
+ */
+public class Checkpoint {
+    static final int MAGIC = 0x4753434B; // "GSCK"
+    static final int VERSION = 2;
+    // 文件头的布局，所有字段按自身大小对齐，位置都以字节为单位
+    static final int HEADER_MAGIC = 0;
+    static final int HEADER_VERSION = 4;
+    static final int HEADER_NODES = 8;
+    static final int HEADER_ITERATION = 12;
+    static final int HEADER_THRESHOLD = 16;
+    static final int HEADER_ITERATIONS = 24;
+    static final int HEADER_PRINT_OFFSET = 28;
+    static final int HEADER_SIGNATURE_LENGTH = 32;
+    static final int HEADER_ENCODED = 36;
+    static final int HEADER_ALGORITHM_LENGTH = 40;
+    static final int HEADER_RANDOM_LENGTH = 44;
+    static final int HEADER_ARRAYS = 48;
+    static final int HEADER_SIZE = 56;
+
+    private Checkpoint() {
+    }
+
+    /**
+     * 把随机数生成器的当前状态序列化，需要在调用者的线程里立即完成，之后的分组阶段会继续使用它
+     */
+    static byte[] randomState(Random random) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(random);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * 写出检查点，先写到同一目录下的临时文件再改名，写出过程中崩溃时原来的检查点仍然完整
+     * 写出期间 S、I、J 不能被合并修改，可以被 find 做路径压缩(压缩前后表示的是同一个划分)
+     *
+     * @param summary      压缩算法对象
+     * @param iteration    已经完成的迭代次数
+     * @param threshold    这一轮合并使用的阈值
+     * @param encoded      这一轮是否不再需要编码和存储(不是输出的轮次，或者已经输出)
+     * @param random_state randomState 得到的随机数生成器状态
+     * @param filename     文件名
+     */
+    static void store(Summary summary, int iteration, double threshold, boolean encoded, byte[] random_state, String filename) throws IOException {
+        byte[] algorithm = summary.getClass().getSimpleName().getBytes(StandardCharsets.UTF_8);
+        long arrays_pos = align8(HEADER_SIZE + algorithm.length + random_state.length);
+        File file = new File(filename).getAbsoluteFile();
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(summary.n);
+            out.writeInt(iteration);
+            out.writeDouble(threshold);
+            out.writeInt(summary.run_iterations);
+            out.writeInt(summary.run_print_offset);
+            out.writeInt(summary.signatureLength());
+            out.writeInt(encoded ? 1 : 0);
+            out.writeInt(algorithm.length);
+            out.writeInt(random_state.length);
+            out.writeLong(arrays_pos);
+            out.write(algorithm);
+            out.write(random_state);
+            for (long pos = HEADER_SIZE + algorithm.length + random_state.length; pos < arrays_pos; pos++) out.writeByte(0);
+            for (VertexArray array : new VertexArray[]{summary.S, summary.I, summary.J, summary.tail, summary.size}) {
+                for (int v = 0; v < summary.n; v++) out.writeInt(array.get(v));
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 标记检查点那一轮的编码和存储已经完成，只改写文件头中的一个 int
+     *
+     * @param filename 文件名
+     */
+    static void markEncoded(String filename) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(filename, "rw")) {
+            file.seek(HEADER_ENCODED);
+            file.writeInt(1);
+        }
+    }
+
+    /**
+     * 从检查点恢复 S、I、J、tail、size 和随机数生成器，检查点必须由同一个算法以相同的参数在同一个图上写出
+     * 检查点那一轮的编码和存储没有完成时设置 summary.resume_output
+     *
+     * @param summary  压缩算法对象，数组的位置(堆上或堆外)保持不变
+     * @param filename 文件名
+     * @return 检查点中已经完成的迭代次数
+     */
+    static int load(Summary summary, String filename) throws IOException {
+        MappedBytes bytes = new MappedBytes(filename);
+        if (bytes.length() < HEADER_SIZE || bytes.getInt(HEADER_MAGIC) != MAGIC)
+            throw new IOException("not a checkpoint file");
+        if (bytes.getInt(HEADER_VERSION) != VERSION)
+            throw new IOException("unsupported checkpoint version: " + bytes.getInt(HEADER_VERSION));
+        if (bytes.getInt(HEADER_NODES) != summary.n)
+            throw new IOException("checkpoint has " + bytes.getInt(HEADER_NODES) + " nodes, the graph has " + summary.n);
+        byte[] algorithm = read(bytes, HEADER_SIZE, bytes.getInt(HEADER_ALGORITHM_LENGTH));
+        String name = new String(algorithm, StandardCharsets.UTF_8);
+        if (!name.equals(summary.getClass().getSimpleName()))
+            throw new IOException("checkpoint was written by " + name + ", not " + summary.getClass().getSimpleName());
+        checkParameter(bytes, HEADER_ITERATIONS, "iterations", summary.run_iterations);
+        checkParameter(bytes, HEADER_PRINT_OFFSET, "print iteration offset", summary.run_print_offset);
+        checkParameter(bytes, HEADER_SIGNATURE_LENGTH, "signature length", summary.signatureLength());
+        byte[] random_state = read(bytes, HEADER_SIZE + algorithm.length, bytes.getInt(HEADER_RANDOM_LENGTH));
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(random_state))) {
+            summary.random = (Random) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("invalid random state", e);
+        }
+
+        long pos = bytes.getLong(HEADER_ARRAYS);
+        if (bytes.length() < pos + 5L * summary.n * Integer.BYTES)
+            throw new IOException("truncated checkpoint file");
+        for (VertexArray array : new VertexArray[]{summary.S, summary.I, summary.J, summary.tail, summary.size}) {
+            for (int v = 0; v < summary.n; v++, pos += Integer.BYTES) array.set(v, bytes.getInt(pos));
+        }
+        summary.resume_output = bytes.getInt(HEADER_ENCODED) == 0;
+        return bytes.getInt(HEADER_ITERATION);
+    }
+
+    private static void checkParameter(MappedBytes bytes, int pos, String name, int expected) throws IOException {
+        if (bytes.getInt(pos) != expected)
+            throw new IOException("checkpoint was written with " + name + " " + bytes.getInt(pos) + ", this run uses " + expected);
+    }
+
+    private static byte[] read(MappedBytes bytes, long pos, int length) {
+        byte[] result = new byte[length];
+        for (int i = 0; i < length; i++) result[i] = bytes.getByte(pos + i);
+        return result;
+    }
+
+    private static long align8(long pos) {
+        return (pos + 7) & ~7L;
+    }
+}
@@ -1,17 +1,27 @@
 package graph_summarization;
 
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.set.hash.TIntHashSet;
+import gnu.trove.set.hash.TLongHashSet;
+
 import java.util.*;
 
 public class Greedy extends Summary{
 
-    // 记录所有顶点的two-hops邻居集合
-    Set<Integer>[] two_hops_neighbors;
-    // 优先队列
-    Queue<NodesPair> H;
-    // 用于得到位于优先队列H中包含某个超点的顶点对
-    HashMap<Integer, HashSet<Integer>> H_record;
-    // 记录所有顶点的邻居边信息
-    HashMap<Integer, HashMap<Integer, Integer>> all_W;
+    // 所有顶点的two-hops邻居
+    TwoHopNeighbours two_hops_neighbors;
+    // 预先计算two-hops邻居时最多保存的数量，超过时不保存，每次需要时现场生成
+    long two_hops_limit = 1L << 28;
+    // 优先队列，元素是打包成 (A << 32 | B) 的顶点对，按 saving 从大到小出队
+    IndexedHeap H;
+    // 用于得到位于优先队列H中包含某个超点的顶点对，H_record.get(A) 是所有与A组成顶点对并且在H中的超点
+    TIntObjectHashMap<TIntHashSet> H_record;
+    // 合并阶段每一批最多从H中取出的顶点对数量，为1时逐个合并
+    int merge_batch = 1;
+    // 记录所有超点的邻居边信息，按超点编号索引，还没有计算或者超点已经不存在时为null
+    WeightVector[] all_W;
 
     /**
      * 构造函数，用于初始化一些共同的结构
@@ -21,174 +31,215 @@ public class Greedy extends Summary{
      */
     public Greedy(String basename) throws Exception {
         super(basename);
-        H = new PriorityQueue<>();
-        H_record = new HashMap<>();
-        all_W = new HashMap<>();
-        two_hops_neighbors = new HashSet[n];
-        for (int i = 0; i < n; i++) {
-            two_hops_neighbors[i] = new HashSet<>();
-        }
+        H = new IndexedHeap();
+        H_record = new TIntObjectHashMap<>();
+        all_W = new WeightVector[n];
+    }
+
+    /**
+     * 设置合并阶段的批量大小，大于1时每次从H中取出最多 merge_batch 个顶点对，
+     * 选出其中互不冲突的一部分并行合并，结果与逐个合并不同，但与线程数无关
+     *
+     * @param merge_batch 批量大小，小于等于1时逐个合并
+     */
+    public void setMergeBatch(int merge_batch) {
+        this.merge_batch = Math.max(1, merge_batch);
+    }
+
+    /**
+     * 设置预先计算two-hops邻居时最多保存的数量，为0时不预先计算
+     */
+    public void setTwoHopsLimit(long two_hops_limit) {
+        this.two_hops_limit = two_hops_limit;
     }
 
     /**
      * 计算所有顶点的two-hops邻居集合，用在后续的initialPhase计算顶点对之间的Saving
+     * 结果太多时不保存，之后每次需要时现场生成
      */
     private void computeTwoHopsNeighbors(){
-
-        for (int u = 0; u < n; u++) {
-            Queue<Integer> queue = new LinkedList<>();
-            int[] visited = new int[n];
-            queue.offer(u);
-            while (!queue.isEmpty()) {
-                Integer v = queue.poll();
-                if(visited[v] >= 3) break;
-                two_hops_neighbors[u].add(v);
-                int[] neighbors = Gr.successorArray(v);
-                for (int i = 0; i < neighbors.length; i++) {
-                    if (visited[neighbors[i]] == 0 && neighbors[i] != u) {
-                        visited[neighbors[i]] = visited[v] + 1;
-                        queue.offer(neighbors[i]);
-                    }
-                }
-            }
+        two_hops_neighbors = new TwoHopNeighbours(Gr, hub);
+        if (two_hops_neighbors.materialize(pool, pool == null ? 1 : num_threads * 4, two_hops_limit)) {
+            System.out.println("Two-hops neighbors: " + two_hops_neighbors.size());
+        } else {
+            System.out.println("Two-hops neighbors exceed " + two_hops_limit + ", generating them on demand");
         }
     }
 
     /**
      * 计算一个超点的two-hops超点邻居集合
      * @param super_node_id 超点的编号
-     * @return
+     * @return 去重后的超点编号，顺序不确定
      */
-    private Set<Integer> computeTwoHopsNeighbors(int super_node_id) {
-        if(I[super_node_id] == -1) return new HashSet<>();
-        int[] nodes = recoverSuperNode(super_node_id);
-        Set<Integer> result = new HashSet<>();
-        for (int u : nodes) {
-            for (int v : two_hops_neighbors[u]) {
-                if(result.contains(S[v])) continue;
-                if(S[v] != -1) result.add(S[v]);
-            }
-        }
-        return result;
+    private int[] computeTwoHopsNeighbors(int super_node_id) {
+        if(I.get(super_node_id) == -1) return new int[0];
+        return two_hops_neighbors.collect(recoverSuperNode(super_node_id), this::find);
     }
 
     /**
-     * 某个顶点对进入优先队列，需要先判断是否已经在队列里面
-     *
-     * @param p
+     * 某个顶点对进入优先队列，如果已经在队列里面则更新它的 saving
      */
-    private void inQueueH(NodesPair p) {
-        if (!H_record.containsKey(p.A))
-            H_record.put(p.A, new HashSet<>());
-        if (!H_record.containsKey(p.B))
-            H_record.put(p.B, new HashSet<>());
-        if (!H_record.get(p.A).contains(p.B)) {
-            H_record.get(p.A).add(p.B);
-            H_record.get(p.B).add(p.A);
-        } else {
-            H.remove(p);
+    private void inQueueH(int A, int B, double saving) {
+        long key = IndexedHeap.key(A, B);
+        if (!H.contains(key)) {
+            record(A).add(B);
+            record(B).add(A);
         }
-        H.offer(p);
+        H.put(key, saving);
     }
 
     /**
-     * 某个顶点对出队，需要判断是否在队列里面
-     *
-     * @param p
+     * 某个顶点对出队，不在队列里面时什么都不做
      */
-    private void outQueueH(NodesPair p) {
-        if (H_record.get(p.A).contains(p.B)) {
-            H.remove(p);
-            H_record.get(p.A).remove(p.B);
-            H_record.get(p.B).remove(p.A);
+    private void outQueueH(int A, int B) {
+        if (H.remove(IndexedHeap.key(A, B))) {
+            H_record.get(A).remove(B);
+            H_record.get(B).remove(A);
         }
     }
 
+    private TIntHashSet record(int A) {
+        TIntHashSet partners = H_record.get(A);
+        if (partners == null) {
+            partners = new TIntHashSet();
+            H_record.put(A, partners);
+        }
+        return partners;
+    }
 
-    private void processAffectedPairs(double threshold, NodesPair p) {
-        HashSet<NodesPair> affected_pairs = new HashSet<>();
+    /**
+     * 超点B合并到超点A之后，重新计算所有受影响的顶点对的 saving
+     */
+    private void processAffectedPairs(double threshold, int A, int B) {
+        TLongHashSet affected_pairs = new TLongHashSet();
+        collectAffectedPairs(A, B, affected_pairs);
+        rescorePairs(threshold, affected_pairs.toArray());
+    }
 
-        // 处理优先队列H中包含超点p.A的所有顶点对
-        if (H_record.containsKey(p.A)) {
-            HashSet<Integer> contain_A = new HashSet<>(H_record.get(p.A));
-            for (Integer C : contain_A) {
-                NodesPair temp = new NodesPair(p.A, C);
-                H.remove(temp);
-                H_record.get(temp.A).remove(temp.B);
-                H_record.get(temp.B).remove(temp.A);
-                affected_pairs.add(temp);
+    /**
+     * 超点B合并到超点A之后，把H中所有受影响的顶点对出队并记录到 affected_pairs 中
+     * 顶点对中的超点都经过 find，同一批合并的其他超点对已经被合并时也能得到正确的超点
+     */
+    private void collectAffectedPairs(int A, int B, TLongHashSet affected_pairs) {
+        // 处理优先队列H中包含超点A的所有顶点对
+        if (H_record.containsKey(A)) {
+            for (int C : H_record.get(A).toArray()) {
+                outQueueH(A, C);
+                affected_pairs.add(IndexedHeap.key(A, find(C)));
             }
         }
 
-        // 处理优先队列H中包含超点p.B的所有顶点对
-        if (H_record.containsKey(p.B)) {
-            HashSet<Integer> contain_B = new HashSet<>(H_record.get(p.B));
-            for (Integer C : contain_B) {
-                NodesPair temp_old = new NodesPair(p.B, C);
-                H.remove(temp_old);
-                H_record.get(temp_old.A).remove(temp_old.B);
-                H_record.get(temp_old.B).remove(temp_old.A);
-                NodesPair temp_new = new NodesPair(p.A, C);
-                affected_pairs.add(temp_new);
+        // 处理优先队列H中包含超点B的所有顶点对，B已经不存在了，换成A
+        if (H_record.containsKey(B)) {
+            for (int C : H_record.get(B).toArray()) {
+                outQueueH(B, C);
+                affected_pairs.add(IndexedHeap.key(A, find(C)));
             }
+            H_record.remove(B);
         }
 
-        // 处理优先队列H中不包含p.A或p.B的顶点对，这些可能被影响到
-        HashSet<Integer> affected_super_nodes = new HashSet<>();
-        for (Integer u : all_W.get(p.A).keySet()) {
-            affected_super_nodes.add(S[u]);
-        }
-        for (Integer W : affected_super_nodes) {
-            for (Integer V : affected_super_nodes) {
-                if (W == p.A || V == p.A || W == p.B || V == p.B) continue;
+        // 处理优先队列H中不包含A或B的顶点对，这些可能被影响到
+        int[] affected = oneHopSuperNodes(A);
+        for (int W : affected) {
+            for (int V : affected) {
+                if (W == A || V == A || W == B || V == B) continue;
                 if (V <= W) continue;
-                NodesPair temp = new NodesPair(W, V);
-                if (H_record.containsKey(temp.A) && H_record.get(temp.A).contains(temp.B)) {
-                    H.remove(temp);
-                    H_record.get(temp.A).remove(temp.B);
-                    H_record.get(temp.B).remove(temp.A);
-                }
-                if(I[temp.A] == -1 || I[temp.B] == -1) continue;
-                affected_pairs.add(temp);
+                outQueueH(W, V);
+                if (I.get(W) == -1 || I.get(V) == -1) continue;
+                affected_pairs.add(IndexedHeap.key(W, V));
             }
         }
+    }
 
-        // 处理所有被影响到的顶点对
-        for (NodesPair temp : affected_pairs) {
-            temp.saving = computeSaving(all_W.get(temp.A), all_W.get(temp.B), temp.A, temp.B);
-            if(temp.saving < threshold || temp.saving < 0.02 ) continue;
-            inQueueH(temp);
+    /**
+     * 重新计算顶点对的 saving(多线程时并行计算)，不低于阈值的重新入队
+     * 计算期间不合并超点，computeSaving 中 find 的路径压缩可以在多个线程中同时进行(见 find)
+     */
+    private void rescorePairs(double threshold, long[] keys) {
+        double[] savings = new double[keys.length];
+        parallelRange(keys.length, (part, start, end) -> {
+            for (int i = start; i < end; i++) {
+                int C = IndexedHeap.first(keys[i]), D = IndexedHeap.second(keys[i]);
+                if (C == D || I.get(C) == -1 || I.get(D) == -1) savings[i] = -1;
+                else savings[i] = computeSaving(all_W[C], all_W[D], C, D);
+            }
+        });
+        for (int i = 0; i < keys.length; i++) {
+            if (savings[i] < threshold || savings[i] < 0.02) continue;
+            inQueueH(IndexedHeap.first(keys[i]), IndexedHeap.second(keys[i]), savings[i]);
         }
     }
 
+    /**
+     * 超点A的一跳超点邻居，即A的邻居顶点所在的超点
+     */
+    private int[] oneHopSuperNodes(int A) {
+        TIntHashSet super_nodes = new TIntHashSet();
+        WeightVector w_A = all_W[A];
+        for (int i = 0; i < w_A.size; i++) {
+            super_nodes.add(find(w_A.ids[i]));
+        }
+        return super_nodes.toArray();
+    }
+
     /**
      * 顶点初始化的阶段，Greedy算法需要进行重载
+     * (1)并行地为还没有 WeightVector 的超点计算 WeightVector
+     * (2)按超点编号分段并行地计算每个超点与其 two-hops 超点邻居的 saving，低于阈值的顶点对直接丢弃，
+     *    每一段保留下来的顶点对记录在自己的数组里
+     * (3)按段的顺序拼接所有保留下来的顶点对，一次性建堆
+     * 这个阶段不合并超点，find 的路径压缩可以在多个线程中同时进行(见 find)，所以各段之间互不影响
      */
     public double initialPhase(double threshold) {
         System.out.println("# Initial Phase");
         long startTime = System.currentTimeMillis();
 
-        for (int A = 0; A < n; A++) {
-            if(I[A] == -1) continue;
-            Set<Integer> two_hops_supernode = computeTwoHopsNeighbors(A);
-            for (Integer B : two_hops_supernode) {
-                if(B <= A || I[B] == -1) continue;
-                if((H_record.containsKey(A) && H_record.get(A).contains(B)) || (H_record.containsKey(B) && H_record.get(B).contains(A))) continue;
-                NodesPair p = new NodesPair(A, B);
-                if (!all_W.containsKey(p.A)) {
-                    all_W.put(p.A, createW(p.A));
-                }
-                if (!all_W.containsKey(p.B)) {
-                    all_W.put(p.B, createW(p.B));
+        parallelRange(n, (part, start, end) -> {
+            for (int A = start; A < end; A++) {
+                if (I.get(A) != -1 && all_W[A] == null) all_W[A] = createW(A);
+            }
+        });
+
+        // 负载与超点的 two-hops 邻居数有关，很不均匀，所以切得比其他阶段更细
+        int parts = pool == null ? 1 : num_threads * 16;
+        TLongArrayList[] part_keys = new TLongArrayList[parts];
+        TDoubleArrayList[] part_savings = new TDoubleArrayList[parts];
+        Parallel.forRange(pool, parts, n, (part, start, end) -> {
+            TLongArrayList keys = new TLongArrayList();
+            TDoubleArrayList savings = new TDoubleArrayList();
+            for (int A = start; A < end; A++) {
+                if (I.get(A) == -1 || all_W[A].size == 0) continue;
+                int[] two_hops_supernode = computeTwoHopsNeighbors(A);
+                for (int B : two_hops_supernode) {
+                    if (B <= A || I.get(B) == -1 || all_W[B].size == 0) continue;
+                    long key = IndexedHeap.key(A, B);
+                    if (H.contains(key)) continue;
+                    double saving = computeSaving(all_W[A], all_W[B], A, B);
+                    if (saving < threshold || saving < 0.02) continue;
+                    keys.add(key);
+                    savings.add(saving);
                 }
-                if(all_W.get(p.A).size() == 0 || all_W.get(p.B).size() == 0) continue;
-                p.saving = computeSaving(all_W.get(p.A), all_W.get(p.B), p.A, p.B);
-                if(p.saving < threshold || p.saving < 0.02) continue;
-                inQueueH(p);
-//                if (threshold == 0.4) {
-//                    System.out.println(p);
-//                }
             }
+            part_keys[part] = keys;
+            part_savings[part] = savings;
+        });
+
+        int total = 0;
+        for (TLongArrayList keys : part_keys) total += keys.size();
+        long[] keys = new long[total];
+        double[] savings = new double[total];
+        int pos = 0;
+        for (int part = 0; part < parts; part++) {
+            int size = part_keys[part].size();
+            part_keys[part].toArray(keys, 0, pos, size);
+            part_savings[part].toArray(savings, 0, pos, size);
+            pos += size;
+        }
+        H.putAll(keys, savings, total);
+        for (long key : keys) {
+            int A = IndexedHeap.first(key), B = IndexedHeap.second(key);
+            record(A).add(B);
+            record(B).add(A);
         }
 
         return (System.currentTimeMillis() - startTime) / 1000.0;
@@ -204,25 +255,94 @@ public class Greedy extends Summary{
         System.out.println(String.format("Threshold=%5f", threshold));
         long startTime = System.currentTimeMillis();
 
+        if (merge_batch > 1) {
+            mergeBatches(threshold);
+            return (System.currentTimeMillis() - startTime) / 1000.0;
+        }
         while (!H.isEmpty()) {
             // 队首出队，开始合并超点 p.A 和 p.B
-            NodesPair p = H.poll();
-            if(H_record.containsKey(p.A) && H_record.get(p.A).contains(p.B)) H_record.get(p.A).remove(p.B);
-            if(H_record.containsKey(p.B) && H_record.get(p.B).contains(p.A)) H_record.get(p.B).remove(p.A);
-            HashMap<Integer, Integer> w_update = updateW(all_W.get(p.A), all_W.get(p.B));
-            all_W.replace(p.A, w_update);
-            all_W.remove(p.B);
+            NodesPair p = new NodesPair(IndexedHeap.first(H.peek()), IndexedHeap.second(H.peek()), H.peekPriority());
+            outQueueH(p.A, p.B);
+            all_W[p.A] = updateW(all_W[p.A], all_W[p.B]);
+            all_W[p.B] = null;
             updateSuperNode(p.A, p.B);
+            metrics.merge_attempts.increment();
+            metrics.merge_successes.increment();
 //            if (threshold == 0.0) {
 //                System.out.println("Merge " + p.A + " and " + p.B + " with saving="+p.saving);
 //            }
             // 处理被影响到的顶点对
-            processAffectedPairs(threshold, p);
+            processAffectedPairs(threshold, p.A, p.B);
         }
 
         return (System.currentTimeMillis() - startTime) / 1000.0;
     }
 
+    /**
+     * 批量合并：
+     * (1)依次取出H的前 merge_batch 个顶点对，如果顶点对的两个超点及其一跳超点邻居都没有被本批次前面选中的顶点对占用，
+     *    就选中它并占用这些超点，否则放回H；队首的顶点对总会被选中，保证每一批至少合并一对
+     * (2)被选中的顶点对互不影响，并行计算合并后的 WeightVector，再依次合并超点
+     * (3)收集所有受影响的顶点对，并行地重新计算 saving
+     */
+    private void mergeBatches(double threshold) {
+        TIntHashSet occupied = new TIntHashSet();
+        TLongArrayList selected = new TLongArrayList();
+        TLongArrayList deferred = new TLongArrayList();
+        TDoubleArrayList deferred_savings = new TDoubleArrayList();
+        while (!H.isEmpty()) {
+            occupied.clear();
+            selected.resetQuick();
+            deferred.resetQuick();
+            deferred_savings.resetQuick();
+            for (int i = 0; i < merge_batch && !H.isEmpty(); i++) {
+                long key = H.peek();
+                double saving = H.peekPriority();
+                int A = IndexedHeap.first(key), B = IndexedHeap.second(key);
+                outQueueH(A, B);
+                int[] region_A = oneHopSuperNodes(A), region_B = oneHopSuperNodes(B);
+                boolean conflict = occupied.contains(A) || occupied.contains(B);
+                for (int C : region_A) conflict |= occupied.contains(C);
+                for (int C : region_B) conflict |= occupied.contains(C);
+                if (conflict) {
+                    deferred.add(key);
+                    deferred_savings.add(saving);
+                    continue;
+                }
+                selected.add(key);
+                occupied.add(A);
+                occupied.add(B);
+                occupied.addAll(region_A);
+                occupied.addAll(region_B);
+            }
+            for (int i = 0; i < deferred.size(); i++) {
+                inQueueH(IndexedHeap.first(deferred.get(i)), IndexedHeap.second(deferred.get(i)), deferred_savings.get(i));
+            }
+
+            // 放回H的顶点对在之后的批次中被选中时才计数，不在每次推迟时重复计数，与逐对合并的计数方式相同
+            metrics.merge_attempts.add(selected.size());
+            metrics.merge_successes.add(selected.size());
+
+            long[] pairs = selected.toArray();
+            WeightVector[] merged = new WeightVector[pairs.length];
+            parallelRange(pairs.length, (part, start, end) -> {
+                for (int i = start; i < end; i++) {
+                    merged[i] = updateW(all_W[IndexedHeap.first(pairs[i])], all_W[IndexedHeap.second(pairs[i])]);
+                }
+            });
+            for (int i = 0; i < pairs.length; i++) {
+                int A = IndexedHeap.first(pairs[i]), B = IndexedHeap.second(pairs[i]);
+                all_W[A] = merged[i];
+                all_W[B] = null;
+                updateSuperNode(A, B);
+            }
+
+            TLongHashSet affected_pairs = new TLongHashSet();
+            for (long pair : pairs) collectAffectedPairs(IndexedHeap.first(pair), IndexedHeap.second(pair), affected_pairs);
+            rescorePairs(threshold, affected_pairs.toArray());
+        }
+    }
+
     /**
      * @param iteration              迭代次数
      * @param print_iteration_offset 每执行多少次迭代就进行一次 encode 和 evaluate 进行结果输出
@@ -232,20 +352,26 @@ public class Greedy extends Summary{
         System.out.println("----------------------------------- Greedy ALGORITHM ----------------------------------------");
         long startTime = System.currentTimeMillis();
         computeTwoHopsNeighbors();
-        System.out.println("Compute all two-hops neighbors takes " + ((System.currentTimeMillis()-startTime)/1000.0) + " seconds");
-        for (int it = 1; it <= iteration; it++) {
+        double two_hops_seconds = (System.currentTimeMillis() - startTime) / 1000.0;
+        System.out.println("Compute all two-hops neighbors takes " + two_hops_seconds + " seconds");
+        recordPhase("two_hops", two_hops_seconds);
+        int resumed = resumeCheckpoint(iteration, print_iteration_offset);
+        if (resume_output) outputPhases(resumed, this::encodePhase_new);
+        for (int it = resumed + 1; it <= iteration; it++) {
             System.out.println("\n------------------------- ITERATION " + it);
 //            double threshold = 1 / ((it + 1) * 1.0);
             double threshold = 0.5 - it * 0.05;
-            System.out.println(String.format("@Time: %5f seconds", initialPhase(threshold)));
+            reportPhase("initial", () -> initialPhase(threshold));
             System.out.println("After Initial phase, H.size():" + H.size());
-            System.out.println(String.format("@Time: %5f seconds", mergePhase(threshold)));
+            awaitCheckpoint();
+            reportPhase("merge", () -> mergePhase(threshold));
+            saveCheckpoint(it, threshold);
             System.out.println("After Merge phase, H.size():" + H.size());
             if (it % print_iteration_offset == 0) {
-//                System.out.println(String.format("@Time: %5f seconds", encodePhase()));
-                System.out.println(String.format("@Time: %5f seconds", encodePhase_new()));
-                evaluatePhase();
+//                outputPhases(it, this::encodePhase);
+                outputPhases(it, this::encodePhase_new);
             }
         }
+        awaitCheckpoint();
     }
 }
@@ -0,0 +1,219 @@
+package graph_summarization;
+
+import gnu.trove.map.hash.TLongIntHashMap;
+
+/**
+ * 带索引的二叉堆(最大堆)，元素是打包成 (A << 32 | B) 的顶点对，按 saving 从大到小出队，saving 相同时按 A、B 从小到大，
+ * 与 NodesPair.compareTo 的顺序一致
+ * 通过 key 到堆中位置的索引，查找是 O(1) 的，修改优先级和删除任意元素都是 O(log n) 的，
+ * 代替 PriorityQueue.remove(Object) 的线性扫描
+ */
+public class IndexedHeap {
+    // 堆中的元素及其优先级，heap_keys[0] 是堆顶
+    private long[] heap_keys;
+    private double[] priorities;
+    private int size;
+    // key 在堆中的位置
+    private final TLongIntHashMap index;
+
+    public IndexedHeap() {
+        this(16);
+    }
+
+    public IndexedHeap(int capacity) {
+        capacity = Math.max(capacity, 1);
+        heap_keys = new long[capacity];
+        priorities = new double[capacity];
+        index = new TLongIntHashMap(capacity, 0.5f, -1L, -1);
+    }
+
+    /**
+     * 把两个超点编号打包成 key，较小的编号放在高32位
+     */
+    public static long key(int A, int B) {
+        return A < B ? ((long) A << 32) | B : ((long) B << 32) | A;
+    }
+
+    public static int first(long key) {
+        return (int) (key >>> 32);
+    }
+
+    public static int second(long key) {
+        return (int) key;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(long key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * key 的优先级，key 不在堆中时返回 NaN
+     */
+    public double priority(long key) {
+        int pos = index.get(key);
+        return pos == -1 ? Double.NaN : priorities[pos];
+    }
+
+    /**
+     * 插入 key，如果已经在堆中则修改它的优先级(可以变大也可以变小)
+     */
+    public void put(long key, double priority) {
+        int pos = index.get(key);
+        if (pos == -1) {
+            if (size == heap_keys.length) grow();
+            pos = size++;
+            heap_keys[pos] = key;
+            priorities[pos] = priority;
+            index.put(key, pos);
+            siftUp(pos);
+        } else {
+            double old = priorities[pos];
+            priorities[pos] = priority;
+            if (priority > old) siftUp(pos);
+            else siftDown(pos);
+        }
+    }
+
+    /**
+     * 批量插入 keys[0, count)，其中的 key 互不相同并且都不在堆中
+     * 堆为空时直接自底向上建堆，只需要 O(count) 的时间，否则逐个插入
+     */
+    public void putAll(long[] keys, double[] priorities, int count) {
+        if (size > 0) {
+            for (int i = 0; i < count; i++) put(keys[i], priorities[i]);
+            return;
+        }
+        if (count > heap_keys.length) {
+            heap_keys = new long[count];
+            this.priorities = new double[count];
+        }
+        System.arraycopy(keys, 0, heap_keys, 0, count);
+        System.arraycopy(priorities, 0, this.priorities, 0, count);
+        size = count;
+        for (int pos = (size >>> 1) - 1; pos >= 0; pos--) heapify(pos);
+        index.ensureCapacity(count);
+        for (int pos = 0; pos < size; pos++) index.put(heap_keys[pos], pos);
+    }
+
+    /**
+     * 删除 key，返回它是否在堆中
+     */
+    public boolean remove(long key) {
+        int pos = index.remove(key);
+        if (pos == -1) return false;
+        size--;
+        if (pos != size) {
+            heap_keys[pos] = heap_keys[size];
+            priorities[pos] = priorities[size];
+            index.put(heap_keys[pos], pos);
+            if (!siftUp(pos)) siftDown(pos);
+        }
+        return true;
+    }
+
+    /**
+     * 堆顶的 key，堆为空时不能调用
+     */
+    public long peek() {
+        return heap_keys[0];
+    }
+
+    /**
+     * 堆顶的优先级，堆为空时不能调用
+     */
+    public double peekPriority() {
+        return priorities[0];
+    }
+
+    /**
+     * 删除并返回堆顶的 key，堆为空时不能调用
+     */
+    public long poll() {
+        long top = heap_keys[0];
+        remove(top);
+        return top;
+    }
+
+    public void clear() {
+        size = 0;
+        index.clear();
+    }
+
+    /**
+     * 位置 i 的元素是否应该排在位置 j 的元素前面
+     */
+    private boolean before(int i, int j) {
+        if (priorities[i] != priorities[j]) return priorities[i] > priorities[j];
+        return heap_keys[i] < heap_keys[j];
+    }
+
+    private boolean siftUp(int pos) {
+        int start = pos;
+        while (pos > 0) {
+            int parent = (pos - 1) >>> 1;
+            if (!before(pos, parent)) break;
+            swap(pos, parent);
+            pos = parent;
+        }
+        return pos != start;
+    }
+
+    private void siftDown(int pos) {
+        while (true) {
+            int child = 2 * pos + 1;
+            if (child >= size) break;
+            if (child + 1 < size && before(child + 1, child)) child++;
+            if (!before(child, pos)) break;
+            swap(pos, child);
+            pos = child;
+        }
+    }
+
+    /**
+     * 建堆时使用的下沉，还没有建立索引，所以不更新 index
+     */
+    private void heapify(int pos) {
+        while (true) {
+            int child = 2 * pos + 1;
+            if (child >= size) break;
+            if (child + 1 < size && before(child + 1, child)) child++;
+            if (!before(child, pos)) break;
+            long key = heap_keys[pos];
+            heap_keys[pos] = heap_keys[child];
+            heap_keys[child] = key;
+            double priority = priorities[pos];
+            priorities[pos] = priorities[child];
+            priorities[child] = priority;
+            pos = child;
+        }
+    }
+
+    private void swap(int i, int j) {
+        long key = heap_keys[i];
+        heap_keys[i] = heap_keys[j];
+        heap_keys[j] = key;
+        double priority = priorities[i];
+        priorities[i] = priorities[j];
+        priorities[j] = priority;
+        index.put(heap_keys[i], i);
+        index.put(heap_keys[j], j);
+    }
+
+    private void grow() {
+        int capacity = heap_keys.length * 2;
+        long[] new_keys = new long[capacity];
+        System.arraycopy(heap_keys, 0, new_keys, 0, size);
+        heap_keys = new_keys;
+        double[] new_priorities = new double[capacity];
+        System.arraycopy(priorities, 0, new_priorities, 0, size);
+        priorities = new_priorities;
+    }
+}
@@ -0,0 +1,131 @@
+package graph_summarization;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Metrics 对应的 JFR 事件，jdk.jfr 从 JDK 11 和 8u262 开始提供
+ * 项目按 JDK 8 编译，不能直接继承 jdk.jfr.Event，所以通过反射调用 jdk.jfr.EventFactory 在运行时定义事件类型，
+ * 当前 JVM 不提供 jdk.jfr 时 AVAILABLE 为假，其他方法都不能调用
+ * 每个阶段提交一个 graph_summarization.Phase 事件；每个合并小组一个 graph_summarization.MergeGroup 事件，数量很多，默认关闭，需要时在 .jfc 配置中打开
+ */
+final class JfrEvents {
+    // 两种事件的字段名、类型和标签，事件的值按这里的顺序设置
+    private static final String[] PHASE_FIELDS = {"algorithm", "phase", "iteration", "allocated_bytes", "groups",
+            "jaccard_evaluations", "saving_computations", "merge_attempts", "merge_successes"};
+    private static final Class<?>[] PHASE_TYPES = {String.class, String.class, int.class, long.class, long.class,
+            long.class, long.class, long.class, long.class};
+    private static final String[] PHASE_LABELS = {"Algorithm", "Phase", "Iteration", "Allocated", "Groups",
+            "Jaccard Evaluations", "Saving Computations", "Merge Attempts", "Merge Successes"};
+    private static final String[] GROUP_FIELDS = {"algorithm", "size", "jaccard_evaluations", "merge_attempts", "merge_successes"};
+    private static final Class<?>[] GROUP_TYPES = {String.class, int.class, long.class, long.class, long.class};
+    private static final String[] GROUP_LABELS = {"Algorithm", "Size", "Jaccard Evaluations", "Merge Attempts", "Merge Successes"};
+
+    // EventFactory 对象以及 Event 的方法，初始化失败时为null
+    private static Object phase_factory;
+    private static Object group_factory;
+    private static Method new_event, begin, end, commit, should_commit, is_enabled, set;
+
+    static final boolean AVAILABLE = init();
+
+    private JfrEvents() {
+    }
+
+    private static boolean init() {
+        try {
+            Class<?> event = Class.forName("jdk.jfr.Event");
+            Class<?> factory = Class.forName("jdk.jfr.EventFactory");
+            Method create = factory.getMethod("create", List.class, List.class);
+            phase_factory = create.invoke(null,
+                    eventAnnotations("graph_summarization.Phase", "Summarization Phase", true),
+                    fields(PHASE_FIELDS, PHASE_TYPES, PHASE_LABELS, "allocated_bytes"));
+            group_factory = create.invoke(null,
+                    eventAnnotations("graph_summarization.MergeGroup", "Merge Group", false),
+                    fields(GROUP_FIELDS, GROUP_TYPES, GROUP_LABELS, null));
+            new_event = factory.getMethod("newEvent");
+            begin = event.getMethod("begin");
+            end = event.getMethod("end");
+            commit = event.getMethod("commit");
+            should_commit = event.getMethod("shouldCommit");
+            is_enabled = event.getMethod("isEnabled");
+            set = event.getMethod("set", int.class, Object.class);
+            return true;
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            phase_factory = null;
+            group_factory = null;
+            return false;
+        }
+    }
+
+    /**
+     * 事件类型的注解：名字、标签、分类，不记录调用栈；enabled 为假时默认关闭
+     */
+    private static List<Object> eventAnnotations(String name, String label, boolean enabled) throws ReflectiveOperationException {
+        List<Object> annotations = new ArrayList<>();
+        annotations.add(annotation("jdk.jfr.Name", name));
+        annotations.add(annotation("jdk.jfr.Label", label));
+        annotations.add(annotation("jdk.jfr.Category", new String[]{"Graph Summarization"}));
+        annotations.add(annotation("jdk.jfr.StackTrace", false));
+        if (!enabled) annotations.add(annotation("jdk.jfr.Enabled", false));
+        return annotations;
+    }
+
+    /**
+     * 事件的字段，名为 data_amount 的字段标记为字节数
+     */
+    private static List<Object> fields(String[] names, Class<?>[] types, String[] labels, String data_amount) throws ReflectiveOperationException {
+        Constructor<?> descriptor = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class, List.class);
+        List<Object> fields = new ArrayList<>();
+        for (int i = 0; i < names.length; i++) {
+            List<Object> annotations = new ArrayList<>();
+            annotations.add(annotation("jdk.jfr.Label", labels[i]));
+            if (names[i].equals(data_amount)) annotations.add(annotation("jdk.jfr.DataAmount", "BYTES"));
+            fields.add(descriptor.newInstance(types[i], names[i], annotations));
+        }
+        return fields;
+    }
+
+    private static Object annotation(String type, Object value) throws ReflectiveOperationException {
+        Class<?> element = Class.forName("jdk.jfr.AnnotationElement");
+        return element.getConstructor(Class.class, Object.class).newInstance(Class.forName(type), value);
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) {
+        try {
+            return method.invoke(target, args);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static void setAll(Object event, Object... values) {
+        for (int i = 0; i < values.length; i++) invoke(set, event, i, values[i]);
+    }
+
+    static Object beginPhase() {
+        Object event = invoke(new_event, phase_factory);
+        invoke(begin, event);
+        return event;
+    }
+
+    static void endPhase(Object started, String algorithm, Metrics.PhaseRecord record) {
+        invoke(end, started);
+        if (!(Boolean) invoke(should_commit, started)) return;
+        setAll(started, algorithm, record.phase, record.iteration, record.allocated_bytes, record.groups,
+                record.jaccard_evaluations, record.saving_computations, record.merge_attempts, record.merge_successes);
+        invoke(commit, started);
+    }
+
+    static void mergeGroup(String algorithm, int size, long jaccard, long attempts, long successes) {
+        Object event = invoke(new_event, group_factory);
+        if (!(Boolean) invoke(is_enabled, event)) return;
+        setAll(event, algorithm, size, jaccard, attempts, successes);
+        invoke(commit, event);
+    }
+}
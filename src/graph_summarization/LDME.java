@@ -1,26 +1,57 @@
 package graph_summarization;
 
+import gnu.trove.list.array.TIntArrayList;
+import it.unimi.dsi.webgraph.ImmutableGraph;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Random;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.List;
 
 public class LDME extends Summary{
 
-    // 用于对顶点的重新编号
-    int[] h;
+    // 用于对顶点的重新编号，与超点状态放在同一个位置(堆上或堆外)
+    VertexArray h;
     // 哈希签名的长度
     int signatureLength;
-    // 哈希签名数组，在顶点分组时使用
-    OnePermHashSig[] F_OPH;
-    Integer[] G;
-    // 找到G数组里的第一个组的第一个顶点的index
-    int g_start;
+    // 所有超点的哈希签名，在顶点分组时使用，多轮迭代之间重复使用
+    OnePermHashSig F_OPH;
+    // 本轮分组每个桶的大小以及旋转填充的方向
+    int bin_size;
+    int[] rot_direction;
+    // 排序后的组别数组，只包含有签名的超点，签名指纹相同的超点相邻且按编号升序排列
+    int[] G;
     // 分组后的组别数量
     int num_groups;
-    // 用于分组的两个数组，分别记录每个组的hash值和第几组
-    OnePermHashSig[] group_prop_0;
-    int[] group_prop_1;
+    // 每个组在G中的开始位置，第i组是 G[group_start[i], group_start[i+1])
+    int[] group_start;
+    // 层次分组的层数，为1时只用 signatureLength 个桶分一次组；第l层(从0开始)的签名长度是 signatureLength * 2^l
+    int levels = 1;
+    // 层次分组时，大小超过 split_size 的组会用下一层更长的签名继续细分，不超过的组保持不变
+    int split_size = 500;
+    // 层次分组时最细一层的桶大小，以及每一层旋转填充的方向
+    int fine_bin_size;
+    int[][] level_rot_direction;
+    // 增量分组一次预先计算的轮数，为0时每轮重新扫描所有顶点的邻居
+    int incremental_rounds = 0;
+    // 各轮没有旋转填充的签名，超点A第r轮的签名是这一行的 [r*signatureLength, (r+1)*signatureLength)
+    OnePermHashSig round_signatures;
+    // 各轮哈希函数的参数，以及下一轮使用第几个
+    long[] round_salts;
+    int round;
+
+    /**
+     * 分配一个签名矩阵，超点状态放在堆外(见 setOffHeap)时签名矩阵也放在同一个位置
+     */
+    private OnePermHashSig newSignatures(int sigSize) {
+        if (!S.isOffHeap()) return new OnePermHashSig(n, sigSize);
+        try {
+            return OnePermHashSig.offHeap(n, sigSize, off_heap_directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
     /**
      * 构造函数，用于初始化一些共同的结构
@@ -33,135 +64,311 @@ public class LDME extends Summary{
         this.signatureLength = signatureLength;
     }
 
+    @Override
+    protected int signatureLength() {
+        return signatureLength;
+    }
+
+    /**
+     * 设置层次分组：先用 signatureLength 个桶的签名分组，大小超过 split_size 的组再用长一倍的签名在组内细分，最多 levels 层
+     * 较大的组因此被切得更细，而较小的组保留在粗粒度的分组里，不会失去合并的机会
+     * 所有层次的签名都由最细一层的签名合并相邻的桶得到，每轮只需要扫描一次邻居
+     *
+     * @param levels     层数，小于等于1时不使用层次分组
+     * @param split_size 需要继续细分的组大小
+     */
+    public void setHierarchy(int levels, int split_size) {
+        this.levels = Math.max(1, levels);
+        this.split_size = Math.max(1, split_size);
+    }
+
+    /**
+     * 设置增量分组：一次扫描邻居预先计算 rounds 个独立哈希函数下每个超点的签名，之后每一轮分组使用其中一个，
+     * 超点合并时新超点的签名就是两个超点的签名逐个桶取最小值，不需要重新扫描，rounds 轮用完之后再换一批新的哈希函数
+     * 每一轮的签名用以 salt 为参数的哈希值代替重新编号 h，哈希值的高位决定桶，只用于不分层的分组(levels 为1)
+     *
+     * @param rounds 一次预先计算的轮数，小于等于0时每轮重新计算
+     */
+    public void setIncrementalDivide(int rounds) {
+        incremental_rounds = Math.max(0, rounds);
+        round_signatures = null;
+    }
+
+    /**
+     * 用 incremental_rounds 个新的哈希函数计算所有超点的签名，每个顶点的邻居只扫描一次
+     */
+    private void computeRoundSignatures() {
+        int rounds = incremental_rounds;
+        int k_bins = signatureLength;
+        round_salts = new long[rounds];
+        for (int r = 0; r < rounds; r++) round_salts[r] = random.nextLong();
+        if (round_signatures == null) round_signatures = newSignatures(k_bins * rounds);
+        parallelRange(n, (part, start, end) -> {
+            ImmutableGraph graph = graph();
+            for (int A = start; A < end; A++) {
+                if (I.get(A) == -1) continue;
+                round_signatures.clear(A);
+                for (int v = I.get(A); v != -1; v = J.get(v)) {
+                    int[] neighbours = groupingNeighbours(graph, v);
+                    int degree = groupingDegree(graph, v);
+                    for (int j = 0; j < degree; j++) {
+                        for (int r = 0; r < rounds; r++) {
+                            int hashed = saltedHash(neighbours[j], round_salts[r]);
+                            round_signatures.update(A, r * k_bins + (int) (((long) hashed * k_bins) >>> 31), hashed);
+                        }
+                    }
+                }
+            }
+        });
+        round = 0;
+    }
+
+    /**
+     * 合并超点的同时更新预先计算的签名
+     */
+    @Override
+    protected void updateSuperNode(int super_node_a, int super_node_b) {
+        super.updateSuperNode(super_node_a, super_node_b);
+        if (round_signatures != null) {
+            round_signatures.merge(Math.min(super_node_a, super_node_b), Math.max(super_node_a, super_node_b));
+        }
+    }
+
     /**
      * 对顶点的一次重新编号 h: |V| -> |V|
      */
     private void randomPermutation() {
-        h = new int[n];
+        // 数组在各轮之间重复使用，每轮重新从恒等排列开始洗牌，结果与重新分配相同
+        if (h == null) h = vertexArray(n);
         for (int i = 0; i < n; i++) {
-            h[i] = i;
+            h.set(i, i);
         }
-        Random rnd = new Random();
-        rnd = ThreadLocalRandom.current();
-        for (int i = h.length - 1; i > 0; i--) {
-            int index = rnd.nextInt(i + 1);
-            int a = h[index];
-            h[index] = h[i];
-            h[i] = a;
+        for (int i = n - 1; i > 0; i--) {
+            int index = random.nextInt(i + 1);
+            int a = h.get(index);
+            h.set(index, h.get(i));
+            h.set(i, a);
         }
     }
 
     /**
-     * 计算一个组包含多少的顶点，即组的大小
+     * 计算超点A的签名及其指纹，需要先在 dividePhase 中确定 h、bin_size 和 rot_direction，hub 成员只使用邻居样本(见 setHubDegree)
      *
-     * @param arr    排序后各组的哈希值，按照哈希值升序排序
-     * @param key    要计算大小的那组的哈希值
-     * @param st_pos 要计算大小的那组的开始index
-     * @return
+     * @param A 超点编号
      */
-    private int groupLength(OnePermHashSig[] arr, OnePermHashSig key, int st_pos) {
-        int counter = 1;
-        while (arr[st_pos++].equals(key) && st_pos < arr.length - 1) counter++;
-        return counter;
+    void computeSignature(int A) {
+        ImmutableGraph graph = graph();
+        F_OPH.clear(A);
+        for (int v = I.get(A); v != -1; v = J.get(v)) {
+            int[] neighbours = groupingNeighbours(graph, v);
+            int degree = groupingDegree(graph, v);
+            for (int j = 0; j < degree; j++) {
+                int permuted_h = h.get(neighbours[j]);
+                F_OPH.update(A, permuted_h / bin_size, permuted_h % bin_size);
+            }
+        }
+        // rotation
+        F_OPH.densify(A, rot_direction);
+        F_OPH.computeFingerprint(A);
     }
 
     /**
      * 分组阶段，LDME算法通过哈希值对顶点进行划分
-     * 分组完成后，可以通过遍历 G 得到每个组，相同组的G[i]值相等
+     * 分组完成后，第i组是 G[group_start[i], group_start[i+1])
      */
     @Override
     public double dividePhase(){
         long startTime = System.currentTimeMillis();
         System.out.println("# Divide Phase");
+        if (levels > 1) {
+            hierarchicalGroups();
+            for (int i = 0; i < num_groups; i++) metrics.recordGroup(group_start[i + 1] - group_start[i]);
+            return (System.currentTimeMillis() - startTime) / 1000.0;
+        }
 
-        int k_bins = signatureLength;
-        int bin_size = n / k_bins;
-        if (n % k_bins != 0) { k_bins = k_bins + 1; }
+        if (incremental_rounds > 0) {
+            // 增量分组，复制预先计算的这一轮的签名，旋转填充之后计算指纹
+            int k_bins = signatureLength;
+            rot_direction = new int[k_bins];
+            for (int i = 0; i < k_bins; i++) rot_direction[i] = random.nextBoolean() ? 1 : -1;
+            if (round_signatures == null || round == incremental_rounds) computeRoundSignatures();
+            int offset = round++ * k_bins;
+            if (F_OPH == null || F_OPH.sigSize != k_bins)
+                F_OPH = newSignatures(k_bins);
+            parallelRange(n, (part, start, end) -> {
+                for (int A = start; A < end; A++) {
+                    if (I.get(A) == -1) continue;
+                    F_OPH.copyFrom(A, round_signatures, offset);
+                    F_OPH.densify(A, rot_direction);
+                    F_OPH.computeFingerprint(A);
+                }
+            });
+        } else {
+            int k_bins = signatureLength;
+            bin_size = n / k_bins;
+            if (n % k_bins != 0) { k_bins = k_bins + 1; }
 
-        // 首先生成长度为k_bins的一个数组用于辅助计算hash签名值
-        int[] rot_direction = new int[k_bins];
-        Random random = new Random();
-        for (int i = 0; i < k_bins; i++) {
-            if (random.nextBoolean()) { rot_direction[i] = 1; }
-            else { rot_direction[i] = -1; }
-        }
+            // 首先生成长度为k_bins的一个数组用于辅助计算hash签名值
+            rot_direction = new int[k_bins];
+            for (int i = 0; i < k_bins; i++) {
+                if (random.nextBoolean()) { rot_direction[i] = 1; }
+                else { rot_direction[i] = -1; }
+            }
 
-        // 接着对顶点进行一个编号重排
-        randomPermutation();
+            // 接着对顶点进行一个编号重排
+            randomPermutation();
 
-        // 初始化F_OPH数组, 用于存储每个顶点的哈希值
-        F_OPH = new OnePermHashSig[n];
-        for(int A=0; A<n ; A++)
-            F_OPH[A] = new OnePermHashSig(k_bins);
+            // 签名矩阵只分配一次，之后每轮只重置仍然是超点的那些行
+            if (F_OPH == null || F_OPH.sigSize != k_bins)
+                F_OPH = newSignatures(k_bins);
+            // 各个超点的签名互不影响，按区间并行计算
+            parallelRange(n, (part, start, end) -> {
+                for (int A = start; A < end; A++) {
+                    // A不是一个超点
+                    if (I.get(A) == -1) continue;
+                    computeSignature(A);
+                }
+            });
+        }
 
+        // 只有签名不全为-1的超点参与分组
+        int num_supernodes = 0;
         for (int A = 0; A < n; A++) {
-            // A不是一个超点
-            if (I[A] == -1) continue;
-            for (int v = I[A]; ; v=J[v]) {
-                int[] neighbours = Gr.successorArray(v);
-                for (int j = 0; j < neighbours.length; j++) {
-                    int permuted_h = h[neighbours[j]];
-                    int permuted_bin = permuted_h / bin_size;
-                    if (F_OPH[A].sig[permuted_bin] == -1 || permuted_h % bin_size < F_OPH[A].sig[permuted_bin]) {
-                        F_OPH[A].sig[permuted_bin] = permuted_h % bin_size;
-                    }
-                }
-                if(J[v]==-1)
-                    break;
+            if (I.get(A) != -1 && !F_OPH.unassigned(A)) num_supernodes++;
+        }
+        long[] keys = new long[num_supernodes];
+        G = new int[num_supernodes];
+        int counter = 0;
+        for (int A = 0; A < n; A++) {
+            if (I.get(A) != -1 && !F_OPH.unassigned(A)) {
+                keys[counter] = F_OPH.fingerprint[A];
+                G[counter++] = A;
             }
+        }
+        // 按照指纹排序，指纹相同的超点即为同一组
+        LongRadixSort.sort(keys, G, pool, num_threads);
 
-            // rotation
-            for (int A_bin = 0; A_bin < k_bins; A_bin++) {
-                int direction = rot_direction[A_bin];
-                if (F_OPH[A].sig[A_bin] == -1) {
-                    int i = (A_bin + direction) % k_bins;
-                    if (i < 0) { i += k_bins; }
-                    int counter = 0;
-                    while (F_OPH[A].sig[i] == -1 && counter < k_bins) {
-                        i = (i + direction) % k_bins;
-                        if (i < 0) { i += k_bins; }
-                        counter++;
-                    }
-                    F_OPH[A].sig[A_bin] = F_OPH[A].sig[i];
-                }
+        // 一次扫描得到每个组的边界
+        num_groups = 0;
+        for (int i = 0; i < num_supernodes; i++) {
+            if (i == 0 || keys[i] != keys[i - 1]) num_groups++;
+        }
+        group_start = new int[num_groups + 1];
+        counter = 0;
+        for (int i = 0; i < num_supernodes; i++) {
+            if (i == 0 || keys[i] != keys[i - 1]) group_start[counter++] = i;
+        }
+        group_start[num_groups] = num_supernodes;
+        for (int i = 0; i < num_groups; i++) metrics.recordGroup(group_start[i + 1] - group_start[i]);
+
+        return (System.currentTimeMillis() - startTime) / 1000.0;
+    }
+
+    /**
+     * 层次分组：计算最细一层的签名(保存重新编号后的原始值)，先按第0层的指纹分组，再递归地细分过大的组
+     * 分组完成后，第i组是 G[group_start[i], group_start[i+1])
+     */
+    private void hierarchicalGroups() {
+        int fine_bins = signatureLength << (levels - 1);
+        fine_bin_size = Math.max(1, (n + fine_bins - 1) / fine_bins);
+        int k_bins = (n + fine_bin_size - 1) / fine_bin_size;
+        level_rot_direction = new int[levels][];
+        for (int level = 0; level < levels; level++) {
+            level_rot_direction[level] = new int[((k_bins - 1) >> (levels - 1 - level)) + 1];
+            for (int i = 0; i < level_rot_direction[level].length; i++) {
+                level_rot_direction[level][i] = random.nextBoolean() ? 1 : -1;
             }
         }
+        randomPermutation();
 
-        // 对分组进行排序
-        G = new Integer[n];
-        for (int i = 0; i < n; i++) G[i] = i;
-        Arrays.sort(G, (o1, o2) -> OnePermHashSig.compare(F_OPH[o1], F_OPH[o2]));
+        if (F_OPH == null || F_OPH.sigSize != k_bins)
+            F_OPH = newSignatures(k_bins);
+        parallelRange(n, (part, start, end) -> {
+            ImmutableGraph graph = graph();
+            for (int A = start; A < end; A++) {
+                if (I.get(A) == -1) continue;
+                F_OPH.clear(A);
+                for (int v = I.get(A); v != -1; v = J.get(v)) {
+                    int[] neighbours = groupingNeighbours(graph, v);
+                    int degree = groupingDegree(graph, v);
+                    for (int j = 0; j < degree; j++) {
+                        int permuted_h = h.get(neighbours[j]);
+                        F_OPH.update(A, permuted_h / fine_bin_size, permuted_h);
+                    }
+                }
+            }
+        });
 
-        // 找到第一个组的开始index
-        g_start = 0;
-        while (F_OPH[G[g_start]].unassigned())
-            g_start++;
+        // 第0层：只有签名不全为-1的超点参与分组，按第0层的指纹排序
+        int num_supernodes = 0;
+        for (int A = 0; A < n; A++) {
+            if (I.get(A) != -1 && !F_OPH.unassigned(A)) num_supernodes++;
+        }
+        G = new int[num_supernodes];
+        int counter = 0;
+        for (int A = 0; A < n; A++) {
+            if (I.get(A) != -1 && !F_OPH.unassigned(A)) G[counter++] = A;
+        }
+        long[] keys = levelFingerprints(G, 0);
+        LongRadixSort.sort(keys, G, pool, num_threads);
 
-        // 计算组的数量
-        num_groups = 0;
-        OnePermHashSig g = new OnePermHashSig(k_bins);
-        for (int i = g_start; i < n; i++) {
-            if (!F_OPH[G[i]].equals(g)) {
-                num_groups++;
-                g = F_OPH[G[i]];
+        TIntArrayList starts = new TIntArrayList();
+        int start = 0;
+        for (int i = 1; i <= num_supernodes; i++) {
+            if (i == num_supernodes || keys[i] != keys[start]) {
+                splitGroup(start, i, 1, starts);
+                start = i;
             }
         }
+        num_groups = starts.size();
+        group_start = new int[num_groups + 1];
+        for (int i = 0; i < num_groups; i++) group_start[i] = starts.get(i);
+        group_start[num_groups] = num_supernodes;
+    }
 
-        // 当F[G[i]]>F[G[i-1]] 形成新的组
-        group_prop_0 = new OnePermHashSig[num_groups];
-        group_prop_1 = new int[num_groups];
-        g = new OnePermHashSig(k_bins + 1);
-        int counter = 0;
-        for (int i = g_start; i < n; i++) {
-            if (!F_OPH[G[i]].equals(g)) {
-                group_prop_0[counter] = F_OPH[G[i]];
-                group_prop_1[counter] = i;
-                counter++;
-                g = F_OPH[G[i]];
+    /**
+     * 组 G[start, end) 的大小超过 split_size 并且还有更细的层时，按第 level 层的指纹在组内重新排序并继续细分
+     *
+     * @param start  组在 G 中的开始位置
+     * @param end    组在 G 中的结束位置
+     * @param level  用于细分的层
+     * @param starts 细分得到的每个组在 G 中的开始位置，按顺序追加
+     */
+    private void splitGroup(int start, int end, int level, TIntArrayList starts) {
+        if (end - start <= split_size || level >= levels) {
+            starts.add(start);
+            return;
+        }
+        int[] members = Arrays.copyOfRange(G, start, end);
+        long[] keys = levelFingerprints(members, level);
+        LongRadixSort.sort(keys, members, pool, num_threads);
+        System.arraycopy(members, 0, G, start, members.length);
+        int sub_start = 0;
+        for (int i = 1; i <= members.length; i++) {
+            if (i == members.length || keys[i] != keys[sub_start]) {
+                splitGroup(start + sub_start, start + i, level + 1, starts);
+                sub_start = i;
             }
         }
+    }
 
-        return (System.currentTimeMillis() - startTime) / 1000.0;
+    /**
+     * 并行计算一组超点在第 level 层的签名指纹：由最细一层的签名合并相邻的桶，旋转填充之后计算指纹
+     */
+    private long[] levelFingerprints(int[] supernodes, int level) {
+        int shift = levels - 1 - level;
+        int level_bin_size = fine_bin_size << shift;
+        int[] rot = level_rot_direction[level];
+        long[] keys = new long[supernodes.length];
+        parallelRange(supernodes.length, (part, start, end) -> {
+            int[] signature = new int[rot.length];
+            for (int i = start; i < end; i++) {
+                int length = F_OPH.coarsen(supernodes[i], shift, level_bin_size, signature);
+                OnePermHashSig.densify(signature, 0, length, rot);
+                keys[i] = OnePermHashSig.fingerprint(signature, 0, length);
+            }
+        });
+        return keys;
     }
 
     /**
@@ -172,71 +379,15 @@ public class LDME extends Summary{
         System.out.println("# Merge Phase");
         System.out.println(String.format("Threshold=%5f", threshold));
         long startTime = System.currentTimeMillis();
-        int idx = 0;
-        OnePermHashSig[] temp = new OnePermHashSig[n];
-        for (int i = 0; i < n; i++) temp[i] = F_OPH[G[i]];
-
-        // 开始遍历每个组
+        // 开始遍历每个组，收集所有需要合并的组
+        List<int[]> groups = new ArrayList<>();
         for (int i = 0; i < num_groups; i++) {
-            int st_position = group_prop_1[i];
-            int group_size = groupLength(temp, group_prop_0[i], st_position) - 1;
             // 如果一个组只有一个顶点则直接跳过该组
-            if (group_size < 2) continue;
-
+            if (group_start[i + 1] - group_start[i] < 2) continue;
             // Q是当前要进行合并的的组
-            int[] Q = new int[group_size];
-            int counter = 0;
-            // 找到在Q组里面的所有超点
-            for (int j= st_position; j < (st_position + group_size); j++){
-                Q[counter++] = G[j];
-            }
-
-            HashMap<Integer, HashMap<Integer,Integer>> hm = createW(Q, group_size);
-            int initial_size = hm.size();
-            while (hm.size() > 1) {
-                Random rand = new Random();
-                // 从组内随机找到一个超点A
-                int A = rand.nextInt(initial_size);
-                if (hm.get(A) == null)
-                    continue;
-
-                double max = 0;
-                idx = -1;
-                // 遍历组内其他顶点，找到与A的Jaccard Similarity最大的那个顶点
-                for (int j = 0; j < initial_size; j++) {
-                    if (hm.get(j) == null)
-                        continue;
-                    if (j == A) continue;
-                    double jaccard_similarity = computeJacSim(hm.get(A), hm.get(j));
-                    if (jaccard_similarity > max) {
-                        max = jaccard_similarity;
-                        idx = j;
-                    }
-                }
-                if (idx == -1) {
-                    hm.remove(A);
-                    continue;
-                }
-
-                // 这里做了一个交换，目的是把编号较大的顶点合并到编号较小的顶点里面
-                if (Q[A] > Q[idx]) {
-                    int t = A;
-                    A = idx;
-                    idx = t;
-                }
-
-                // 计算两个顶点之间的合并收益
-                double savings = computeSaving(hm.get(A), hm.get(idx), Q[A], Q[idx]);
-                if (savings >= threshold) {
-                    HashMap<Integer, Integer> w_update = updateW(hm.get(A), hm.get(idx));
-                    hm.replace(A, w_update);
-                    hm.remove(idx);
-                    updateSuperNode(Q[A], Q[idx]);
-                } else {
-                    hm.remove(A);
-                }
-            }
+            groups.add(Arrays.copyOfRange(G, group_start[i], group_start[i + 1]));
         }
+        mergeGroups(groups, threshold);
 
         return (System.currentTimeMillis() - startTime) / 1000.0;
     }
@@ -248,17 +399,21 @@ public class LDME extends Summary{
     @Override
     public void run(int iteration, int print_iteration_offset) {
         System.out.println("----------------------------------- LDME ALGORITHM ----------------------------------------");
-        for (int it = 1; it <= iteration; it++) {
+        int resumed = resumeCheckpoint(iteration, print_iteration_offset);
+        if (resume_output) outputPhases(resumed, this::encodePhase_new);
+        for (int it = resumed + 1; it <= iteration; it++) {
             System.out.println("\n------------------------- ITERATION " + it);
             double threshold = 1 / ((it + 1) * 1.0);
 //            double Threshold = 0.5 - it * 0.05;
-            System.out.println(String.format("@Time: %5f seconds", dividePhase()));
-            System.out.println(String.format("@Time: %5f seconds", mergePhase(threshold)));
+            reportPhase("divide", this::dividePhase);
+            awaitCheckpoint();
+            reportPhase("merge", () -> mergePhase(threshold));
+            saveCheckpoint(it, threshold);
             if (it % print_iteration_offset == 0) {
-//                System.out.println(String.format("@Time: %5f seconds", encodePhase()));
-                System.out.println(String.format("@Time: %5f seconds", encodePhase_new()));
-                evaluatePhase();
+//                outputPhases(it, this::encodePhase);
+                outputPhases(it, this::encodePhase_new);
             }
         }
+        awaitCheckpoint();
     }
 }
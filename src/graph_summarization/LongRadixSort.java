@@ -0,0 +1,149 @@
+package graph_summarization;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * 对 long 数组进行并行的 LSD 基数排序，每次处理 8 位
+ * 用于对打包成 (key << 32 | id) 的长整数排序，替代对 Integer[] 使用比较器的排序
+ * 排序按无符号数进行，并且是稳定的
+ */
+public class LongRadixSort {
+
+    /**
+     * 对整个数组排序
+     */
+    public static void sort(long[] a, ForkJoinPool pool, int parts) {
+        sort(a, 0, a.length, pool, parts);
+    }
+
+    /**
+     * 对 a[from, to) 排序
+     *
+     * @param a     要排序的数组
+     * @param from  开始位置(包含)
+     * @param to    结束位置(不包含)
+     * @param pool  线程池，为null时单线程排序
+     * @param parts 并行时切分的段数
+     */
+    public static void sort(long[] a, int from, int to, ForkJoinPool pool, int parts) {
+        int length = to - from;
+        if (length < 2) return;
+        // 数据量较小时并行和基数排序都不划算
+        if (length < 1024) {
+            Arrays.sort(a, from, to);
+            if (a[from] < 0) unsignedFix(a, from, to);
+            return;
+        }
+        radixSort(a, null, null, from, to, pool, parts);
+    }
+
+    /**
+     * 按照 keys 对 keys 和 values 同时排序，keys 相同的元素保持原来的相对顺序
+     *
+     * @param keys   排序的关键字
+     * @param values 跟随 keys 一起移动的数据
+     * @param pool   线程池，为null时单线程排序
+     * @param parts  并行时切分的段数
+     */
+    public static void sort(long[] keys, int[] values, ForkJoinPool pool, int parts) {
+        if (keys.length < 2) return;
+        radixSort(keys, values, null, 0, keys.length, pool, parts);
+    }
+
+    /**
+     * 按照 keys 对 keys 和 values 同时排序，keys 相同的元素保持原来的相对顺序
+     *
+     * @param keys   排序的关键字
+     * @param values 跟随 keys 一起移动的数据
+     * @param pool   线程池，为null时单线程排序
+     * @param parts  并行时切分的段数
+     */
+    public static void sort(long[] keys, long[] values, ForkJoinPool pool, int parts) {
+        if (keys.length < 2) return;
+        radixSort(keys, null, values, 0, keys.length, pool, parts);
+    }
+
+    private static void radixSort(long[] a, int[] values, long[] long_values, int from, int to, ForkJoinPool pool, int parts) {
+        int length = to - from;
+        if (pool == null || length < (1 << 16)) parts = 1;
+        final int num_parts = parts;
+        long[] src = new long[length];
+        System.arraycopy(a, from, src, 0, length);
+        long[] dst = new long[length];
+        int[] src_values = null, dst_values = null;
+        if (values != null) {
+            src_values = new int[length];
+            System.arraycopy(values, from, src_values, 0, length);
+            dst_values = new int[length];
+        }
+        long[] src_long_values = null, dst_long_values = null;
+        if (long_values != null) {
+            src_long_values = new long[length];
+            System.arraycopy(long_values, from, src_long_values, 0, length);
+            dst_long_values = new long[length];
+        }
+        int[][] count = new int[num_parts][256];
+
+        for (int shift = 0; shift < 64; shift += 8) {
+            final int s = shift;
+            final long[] in = src;
+            final long[] out = dst;
+            final int[] in_values = src_values;
+            final int[] out_values = dst_values;
+            final long[] in_long_values = src_long_values;
+            final long[] out_long_values = dst_long_values;
+            for (int[] c : count) Arrays.fill(c, 0);
+            // 每一段各自统计当前 8 位的分布
+            Parallel.forRange(pool, num_parts, length, (part, start, end) -> {
+                int[] c = count[part];
+                for (int i = start; i < end; i++) c[(int) ((in[i] >>> s) & 0xFF)]++;
+            });
+            // 所有元素这 8 位都相同，跳过这一趟
+            int digit = (int) ((in[0] >>> s) & 0xFF);
+            int same = 0;
+            for (int part = 0; part < num_parts; part++) same += count[part][digit];
+            if (same == length) continue;
+
+            // 计算每一段在每个桶中的写入位置，桶按顺序排列，同一个桶内按段的顺序排列，保证稳定
+            int offset = 0;
+            for (int b = 0; b < 256; b++) {
+                for (int part = 0; part < num_parts; part++) {
+                    int c = count[part][b];
+                    count[part][b] = offset;
+                    offset += c;
+                }
+            }
+            Parallel.forRange(pool, num_parts, length, (part, start, end) -> {
+                int[] c = count[part];
+                for (int i = start; i < end; i++) {
+                    int pos = c[(int) ((in[i] >>> s) & 0xFF)]++;
+                    out[pos] = in[i];
+                    if (in_values != null) out_values[pos] = in_values[i];
+                    if (in_long_values != null) out_long_values[pos] = in_long_values[i];
+                }
+            });
+            src = out;
+            dst = in;
+            src_values = out_values;
+            dst_values = in_values;
+            src_long_values = out_long_values;
+            dst_long_values = in_long_values;
+        }
+        System.arraycopy(src, 0, a, from, length);
+        if (values != null) System.arraycopy(src_values, 0, values, from, length);
+        if (long_values != null) System.arraycopy(src_long_values, 0, long_values, from, length);
+    }
+
+    /**
+     * Arrays.sort 是按有符号数排序的，负数(即最高位为1)排在最前面，把它们移到最后才是无符号的顺序
+     */
+    private static void unsignedFix(long[] a, int from, int to) {
+        int k = from;
+        while (k < to && a[k] < 0) k++;
+        if (k == from || k == to) return;
+        long[] negatives = Arrays.copyOfRange(a, from, k);
+        System.arraycopy(a, k, a, from, to - k);
+        System.arraycopy(negatives, 0, a, to - negatives.length, negatives.length);
+    }
+}
@@ -1,12 +1,33 @@
 package graph_summarization;
 
-import java.util.HashMap;
-
 public class Main {
 
+    // 合并阶段的线程数以及随机数种子，可以通过命令行的第5、6个参数设置
+    static int threads = 1;
+    static Long seed = null;
+    // 压缩结果的输出文件，可以通过命令行的第7个参数设置
+    static String output = null;
+    // 统计指标的输出文件，可以通过命令行的第8个参数设置
+    static String metrics_output = null;
+    // 检查点文件，可以通过命令行的第9个参数设置；第10个参数为 resume 时从已有的检查点继续，否则覆盖它
+    static String checkpoint = null;
+    static boolean resume = false;
+
+    /**
+     * 按照命令行参数设置算法的线程数和随机数种子
+     */
+    static void configure(Summary S) {
+        S.setThreads(threads);
+        if (seed != null) S.setSeed(seed);
+        S.setOutput(output);
+        S.setMetricsOutput(metrics_output);
+        S.setCheckpoint(checkpoint, 1, resume);
+    }
+
     public static void testSWeG(String basename, int iteration, int print_iteration_offset) throws Exception{
         // 使用范型的方式，声明一个父类Summary,指向一个SWeG算法对象
         Summary S = new SWeG(basename);
+        configure(S);
         // 调用run方法运行整个压缩算法
         S.run(iteration, print_iteration_offset);
     }
@@ -14,6 +35,7 @@ public class Main {
     public static void testLDME(String basename, int iteration, int print_iteration_offset, int signatureLength) throws Exception{
         // 使用范型的方式，声明一个父类Summary,指向一个SWeG算法对象
         Summary S = new LDME(basename, signatureLength);
+        configure(S);
         // 调用run方法运行整个压缩算法
         S.run(iteration, print_iteration_offset);
     }
@@ -21,16 +43,24 @@ public class Main {
     public static void testGreedy(String basename, int iteration, int print_iteration_offset) throws Exception{
         // 使用范型的方式，声明一个父类Summary,指向一个SWeG算法对象
         Summary S = new Greedy(basename);
+        configure(S);
         // 调用run方法运行整个压缩算法
         S.run(iteration, print_iteration_offset);
     }
 
     public static void main(String[] args) throws Exception{
         // 参数读取,一共有四个 basename iteration print_iteration_offset k(只有LDME算法有)
+        // 以及六个可选参数 threads(合并阶段的线程数) seed(随机数种子) output(压缩结果的输出文件) metrics(统计指标的输出文件) checkpoint(检查点文件) resume
         String basename = args[0];
         int iteration = Integer.parseInt(args[1]);
         int print_iteration_offset = Integer.parseInt(args[2]);
         int signatureLength = Integer.parseInt(args[3]);
+        if (args.length > 4) threads = Integer.parseInt(args[4]);
+        if (args.length > 5) seed = Long.parseLong(args[5]);
+        if (args.length > 6) output = args[6];
+        if (args.length > 7) metrics_output = args[7];
+        if (args.length > 8) checkpoint = args[8];
+        if (args.length > 9) resume = args[9].equals("resume");
 
 //        testGreedy(basename, iteration, print_iteration_offset);
         testLDME(basename, iteration, print_iteration_offset, signatureLength);
@@ -0,0 +1,47 @@
+package graph_summarization;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 把一个文件以只读方式映射到内存，文件按 1GB 分段映射，因此可以超过 2GB
+ * 段的大小是8的倍数，只要 long/int 在文件中按自身大小对齐，就不会跨越两个段
+ */
+public class MappedBytes {
+    private static final int CHUNK_SHIFT = 30;
+    private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+
+    private final MappedByteBuffer[] chunks;
+    private final long length;
+
+    public MappedBytes(String filename) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(filename, "r")) {
+            FileChannel channel = file.getChannel();
+            length = channel.size();
+            int num_chunks = (int) ((length + CHUNK_MASK) >>> CHUNK_SHIFT);
+            chunks = new MappedByteBuffer[num_chunks];
+            for (int i = 0; i < num_chunks; i++) {
+                long start = (long) i << CHUNK_SHIFT;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_MASK + 1, length - start));
+            }
+        }
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public byte getByte(long pos) {
+        return chunks[(int) (pos >>> CHUNK_SHIFT)].get((int) (pos & CHUNK_MASK));
+    }
+
+    public int getInt(long pos) {
+        return chunks[(int) (pos >>> CHUNK_SHIFT)].getInt((int) (pos & CHUNK_MASK));
+    }
+
+    public long getLong(long pos) {
+        return chunks[(int) (pos >>> CHUNK_SHIFT)].getLong((int) (pos & CHUNK_MASK));
+    }
+}
@@ -0,0 +1,64 @@
+package graph_summarization;
+
+import gnu.trove.list.array.TIntArrayList;
+
+/**
+ * 合并阶段中的一个小组，组内的合并先记录在组内的局部并查集里，处理完整个组之后再统一写回 S, I, J
+ * 这样并行处理多个组时，每个线程只修改自己的组，组外超点的编号和大小始终是本轮合并开始时的状态，结果与线程调度无关
+ */
+public class MergeGroup {
+    // 组的编号，即在分组结果中的下标
+    int id;
+    // 组内的所有超点编号
+    int[] Q;
+    // 组内的局部并查集，parent[i]=j 表示 Q[i] 已经并入 Q[j]
+    int[] parent;
+    // 组内每个超点当前包含的顶点数量
+    int[] local_size;
+    // 按顺序记录的合并操作，每两个元素 <a, b> 表示把超点b并入超点a
+    TIntArrayList merges;
+
+    /**
+     * @param id   组的编号
+     * @param Q    组内的所有超点编号
+     * @param size 全局的超点大小数组，用于初始化组内每个超点的大小
+     */
+    public MergeGroup(int id, int[] Q, VertexArray size) {
+        this.id = id;
+        this.Q = Q;
+        parent = new int[Q.length];
+        local_size = new int[Q.length];
+        for (int i = 0; i < Q.length; i++) {
+            parent[i] = i;
+            local_size[i] = size.get(Q[i]);
+        }
+        merges = new TIntArrayList();
+    }
+
+    /**
+     * 查找组内位置i的超点当前并入了哪个位置
+     *
+     * @param i 组内的位置
+     * @return
+     */
+    int localFind(int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    /**
+     * 在组内把位置b的超点并入位置a的超点，并记录这次合并
+     *
+     * @param a 合并后保留的超点在组内的位置
+     * @param b 被合并的超点在组内的位置
+     */
+    void union(int a, int b) {
+        parent[b] = a;
+        local_size[a] += local_size[b];
+        merges.add(Q[a]);
+        merges.add(Q[b]);
+    }
+}
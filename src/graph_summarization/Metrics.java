@@ -0,0 +1,180 @@
+package graph_summarization;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 算法运行过程中的统计指标，按阶段(divide、merge、encode 等)分别记录：
+ * 分组数量和组大小的直方图、每个小组的合并尝试与成功次数、Jaccard Similarity 和 Saving 的计算次数，以及阶段内分配的内存
+ * 计数器可以被多个线程同时更新，每个阶段结束时汇总成一条 PhaseRecord，可以写成 JSON 文件，
+ * 运行在支持 JFR 的 JVM 上时还会作为 JFR 事件提交(见 JfrEvents)
+ */
+public class Metrics {
+    // 直方图的桶数，组大小的第b个桶记录大小在 [2^b, 2^(b+1)) 之间的组数量
+    static final int SIZE_BUCKETS = 32;
+    // 合并成功率的桶数，第b个桶记录成功率在 [b/10, (b+1)/10) 之间的组数量，最后一个桶是成功率为1的组
+    static final int RATE_BUCKETS = 11;
+    // 当前 JVM 是否提供 jdk.jfr，不提供时不提交 JFR 事件
+    static final boolean JFR_AVAILABLE = JfrEvents.AVAILABLE;
+
+    /**
+     * 一个阶段的统计结果
+     */
+    static class PhaseRecord {
+        String phase;
+        // 该阶段是第几次执行，从1开始
+        int iteration;
+        double seconds;
+        // 阶段内所有存活线程分配的字节数，JVM 不支持统计时为-1
+        long allocated_bytes;
+        long groups;
+        long[] group_sizes;
+        long jaccard_evaluations;
+        long saving_computations;
+        long merge_attempts;
+        long merge_successes;
+        long[] success_rates;
+    }
+
+    final String algorithm;
+    final LongAdder jaccard_evaluations = new LongAdder();
+    final LongAdder saving_computations = new LongAdder();
+    final LongAdder merge_attempts = new LongAdder();
+    final LongAdder merge_successes = new LongAdder();
+    final AtomicLongArray group_sizes = new AtomicLongArray(SIZE_BUCKETS);
+    final AtomicLongArray success_rates = new AtomicLongArray(RATE_BUCKETS);
+    // 已经结束的阶段，按结束的顺序排列
+    final List<PhaseRecord> records = new ArrayList<>();
+
+    // 当前阶段的名字、开始时已分配的字节数以及对应的 JFR 事件
+    private String phase;
+    private long start_allocated;
+    private Object event;
+    private final HashMap<String, Integer> iterations = new HashMap<>();
+
+    public Metrics(String algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * 开始一个阶段，清空所有计数器
+     */
+    public void begin(String phase) {
+        this.phase = phase;
+        jaccard_evaluations.reset();
+        saving_computations.reset();
+        merge_attempts.reset();
+        merge_successes.reset();
+        for (int b = 0; b < SIZE_BUCKETS; b++) group_sizes.set(b, 0);
+        for (int b = 0; b < RATE_BUCKETS; b++) success_rates.set(b, 0);
+        start_allocated = allocatedBytes();
+        event = JFR_AVAILABLE ? JfrEvents.beginPhase() : null;
+    }
+
+    /**
+     * 结束当前阶段，汇总计数器
+     *
+     * @param seconds 阶段方法返回的耗时(秒)
+     * @return 该阶段的统计结果
+     */
+    public PhaseRecord end(double seconds) {
+        PhaseRecord record = new PhaseRecord();
+        record.phase = phase;
+        record.iteration = iterations.merge(phase, 1, Integer::sum);
+        record.seconds = seconds;
+        long allocated = allocatedBytes();
+        record.allocated_bytes = allocated < 0 || start_allocated < 0 ? -1 : allocated - start_allocated;
+        record.group_sizes = new long[SIZE_BUCKETS];
+        for (int b = 0; b < SIZE_BUCKETS; b++) {
+            record.group_sizes[b] = group_sizes.get(b);
+            record.groups += record.group_sizes[b];
+        }
+        record.jaccard_evaluations = jaccard_evaluations.sum();
+        record.saving_computations = saving_computations.sum();
+        record.merge_attempts = merge_attempts.sum();
+        record.merge_successes = merge_successes.sum();
+        record.success_rates = new long[RATE_BUCKETS];
+        for (int b = 0; b < RATE_BUCKETS; b++) record.success_rates[b] = success_rates.get(b);
+        records.add(record);
+        if (event != null) JfrEvents.endPhase(event, algorithm, record);
+        event = null;
+        phase = null;
+        return record;
+    }
+
+    /**
+     * 分组阶段得到了一个大小为 size 的组
+     */
+    public void recordGroup(int size) {
+        group_sizes.incrementAndGet(31 - Integer.numberOfLeadingZeros(Math.max(size, 1)));
+    }
+
+    /**
+     * 合并阶段处理完一个小组，attempts 是计算 Saving 的候选对数量，successes 是实际合并的次数
+     */
+    public void recordGroupMerges(int size, long jaccard, long attempts, long successes) {
+        jaccard_evaluations.add(jaccard);
+        merge_attempts.add(attempts);
+        merge_successes.add(successes);
+        if (attempts > 0) success_rates.incrementAndGet((int) (successes * 10 / attempts));
+        if (JFR_AVAILABLE) JfrEvents.mergeGroup(algorithm, size, jaccard, attempts, successes);
+    }
+
+    /**
+     * 把所有已经结束的阶段写成 JSON 文件
+     */
+    public void writeJSON(String filename) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new FileWriter(filename))) {
+            writer.println("{\"algorithm\": \"" + algorithm + "\", \"phases\": [");
+            for (int i = 0; i < records.size(); i++) {
+                PhaseRecord r = records.get(i);
+                writer.print(String.format(Locale.ROOT,
+                        "  {\"phase\": \"%s\", \"iteration\": %d, \"seconds\": %s, \"allocated_bytes\": %d, \"groups\": %d, \"group_sizes\": %s, " +
+                                "\"jaccard_evaluations\": %d, \"saving_computations\": %d, \"merge_attempts\": %d, \"merge_successes\": %d, \"success_rates\": %s}",
+                        r.phase, r.iteration, r.seconds, r.allocated_bytes, r.groups, histogram(r.group_sizes),
+                        r.jaccard_evaluations, r.saving_computations, r.merge_attempts, r.merge_successes, histogram(r.success_rates)));
+                writer.println(i + 1 < records.size() ? "," : "");
+            }
+            writer.println("]}");
+        }
+    }
+
+    /**
+     * 直方图写成数组，去掉末尾的空桶
+     */
+    private static String histogram(long[] buckets) {
+        int length = buckets.length;
+        while (length > 0 && buckets[length - 1] == 0) length--;
+        StringBuilder builder = new StringBuilder("[");
+        for (int b = 0; b < length; b++) {
+            if (b > 0) builder.append(", ");
+            builder.append(buckets[b]);
+        }
+        return builder.append(']').toString();
+    }
+
+    /**
+     * 所有存活线程累计分配的字节数，不支持时返回-1
+     * 阶段内结束的线程不会被计入，合并阶段的线程池在整个运行过程中一直存活，所以影响不大
+     */
+    static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return -1;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) return -1;
+        long total = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (bytes > 0) total += bytes;
+        }
+        return total;
+    }
+}
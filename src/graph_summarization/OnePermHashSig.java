@@ -1,53 +1,221 @@
 package graph_summarization;
 
+import java.io.IOException;
+import java.util.Arrays;
+
 /**
  * 单排列哈希签名，为每个超点生成其独自的签名
+ * 所有超点的签名存放在一个扁平的 int 数组里，超点A的签名是 sig[A*sigSize, (A+1)*sigSize)，可以在多轮迭代之间重复使用
+ * 同时为每个签名计算一个64位的指纹，分组时直接按指纹划分，不再逐位比较签名
+ * 签名矩阵也可以放在堆外(见 offHeap)，这时存放在一个 long 下标的 VertexArray 中，矩阵的大小也不再受 int 下标的限制
  */
 public class OnePermHashSig {
+    // 签名的长度，即桶的数量
     int sigSize;
+    // 所有超点的签名，-1 表示该桶为空，放在堆外时为null
     int[] sig;
+    // 放在堆外时的签名矩阵，超点A的签名是 [A*sigSize, (A+1)*sigSize)
+    private VertexArray off_heap_sig;
+    // 每个超点签名的64位指纹
+    long[] fingerprint;
+    // 堆外时 densify 和 computeFingerprint 先把一行读到这个临时数组里
+    private final ThreadLocal<int[]> row = ThreadLocal.withInitial(() -> new int[sigSize]);
 
-    public OnePermHashSig(int sigSize) {
+    /**
+     * @param n       顶点(超点编号)的数量
+     * @param sigSize 签名的长度
+     */
+    public OnePermHashSig(int n, int sigSize) {
+        if ((long) n * sigSize > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("signature matrix too large: " + n + " x " + sigSize);
         this.sigSize = sigSize;
-        sig = new int[sigSize];
+        sig = new int[n * sigSize];
+        fingerprint = new long[n];
+    }
+
+    private OnePermHashSig(int n, int sigSize, VertexArray off_heap_sig) {
+        this.sigSize = sigSize;
+        this.off_heap_sig = off_heap_sig;
+        fingerprint = new long[n];
+    }
+
+    /**
+     * 分配一个签名矩阵放在堆外的对象，指纹仍然在堆上
+     *
+     * @param n         顶点(超点编号)的数量
+     * @param sigSize   签名的长度
+     * @param directory 映射文件所在的目录，为null时使用 allocateDirect 分配的内存，见 VertexArray.offHeap
+     */
+    public static OnePermHashSig offHeap(int n, int sigSize, String directory) throws IOException {
+        return new OnePermHashSig(n, sigSize, VertexArray.offHeap((long) n * sigSize, directory));
+    }
+
+    private int get(int A, int bin) {
+        if (sig != null) return sig[A * sigSize + bin];
+        return off_heap_sig.get((long) A * sigSize + bin);
+    }
 
+    private void set(int A, int bin, int value) {
+        if (sig != null) sig[A * sigSize + bin] = value;
+        else off_heap_sig.set((long) A * sigSize + bin, value);
+    }
+
+    private int[] load(int A) {
+        int[] values = row.get();
+        for (int i = 0; i < sigSize; i++) values[i] = get(A, i);
+        return values;
+    }
+
+    /**
+     * 把超点A的签名全部置为-1
+     */
+    public void clear(int A) {
+        if (sig != null) Arrays.fill(sig, A * sigSize, (A + 1) * sigSize, -1);
+        else for (int i = 0; i < sigSize; i++) set(A, i, -1);
+    }
+
+    /**
+     * 用一个落在第 bin 个桶、桶内值为 value 的元素更新超点A的签名
+     */
+    public void update(int A, int bin, int value) {
+        int old = get(A, bin);
+        if (old == -1 || value < old) set(A, bin, value);
+    }
+
+    /**
+     * 把超点B的签名并入超点A：每个桶取两者中的最小值，用于没有旋转填充过的签名，
+     * 结果与直接对合并后的超点计算签名相同
+     */
+    public void merge(int A, int B) {
         for (int i = 0; i < sigSize; i++) {
-            sig[i] = -1;
+            int value = get(B, i);
+            if (value != -1) update(A, i, value);
         }
     }
 
-    public OnePermHashSig(int[] sig) {
-        sigSize = sig.length;
-        this.sig = new int[sigSize];
-        this.sig = sig;
+    /**
+     * 用 other 中超点A的签名从 offset 开始的 sigSize 个桶覆盖超点A的签名
+     */
+    public void copyFrom(int A, OnePermHashSig other, int offset) {
+        if (sig != null && other.sig != null) {
+            System.arraycopy(other.sig, A * other.sigSize + offset, sig, A * sigSize, sigSize);
+            return;
+        }
+        for (int i = 0; i < sigSize; i++) set(A, i, other.get(A, offset + i));
     }
 
-    public boolean equals(OnePermHashSig otherSig) {
+    /**
+     * 超点A的签名是否全部为-1，即超点的所有顶点都没有邻居
+     */
+    public boolean unassigned(int A) {
         for (int i = 0; i < sigSize; i++) {
-            if (sig[i] != otherSig.sig[i]) { return false; }
+            if (get(A, i) != -1) return false;
         }
-
         return true;
     }
 
-    public boolean unassigned() {
-        for (int i = 0; i < sigSize; i++) {
-            if (sig[i] != -1) {
-                return false;
+    /**
+     * 旋转填充(densification)：空桶按照 rot_direction 指定的方向取最近的非空桶的值
+     * 桶按下标从小到大依次处理，已经填充过的桶也可以被后面的桶借用，与逐个向外扫描的结果完全一致，
+     * 但只需要 O(sigSize) 的时间且不分配内存：
+     * 向右借用时，右边还没处理的桶都是原始值，找到第一个非空的即可，越过末尾则绕回到已经填好的第0个桶；
+     * 向左借用时，左边相邻的桶已经填好，第0个桶则绕回到最后一个原始非空的桶
+     *
+     * @param A             超点编号
+     * @param rot_direction 每个桶的借用方向，1表示向右，-1表示向左
+     */
+    public void densify(int A, int[] rot_direction) {
+        if (sig != null) {
+            densify(sig, A * sigSize, sigSize, rot_direction);
+            return;
+        }
+        int[] values = load(A);
+        densify(values, 0, sigSize, rot_direction);
+        for (int i = 0; i < sigSize; i++) set(A, i, values[i]);
+    }
+
+    /**
+     * 对 sig[offset, offset+sigSize) 这一个签名进行旋转填充，见 densify(int, int[])
+     */
+    static void densify(int[] sig, int offset, int sigSize, int[] rot_direction) {
+        int last = -1;
+        for (int i = sigSize - 1; i >= 0; i--) {
+            if (sig[offset + i] != -1) {
+                last = i;
+                break;
             }
         }
+        // 所有桶都为空
+        if (last == -1) return;
+        int next = 0;
+        for (int bin = 0; bin < sigSize; bin++) {
+            if (sig[offset + bin] != -1) continue;
+            if (rot_direction[bin] == 1) {
+                if (next <= bin) next = bin + 1;
+                while (next < sigSize && sig[offset + next] == -1) next++;
+                sig[offset + bin] = next < sigSize ? sig[offset + next] : sig[offset];
+            } else {
+                sig[offset + bin] = bin > 0 ? sig[offset + bin - 1] : sig[offset + last];
+            }
+        }
+    }
 
-        return true;
+    /**
+     * 计算并记录超点A签名的64位指纹
+     */
+    public long computeFingerprint(int A) {
+        fingerprint[A] = sig != null ? fingerprint(sig, A * sigSize, sigSize) : fingerprint(load(A), 0, sigSize);
+        return fingerprint[A];
     }
 
-    public static int compare(OnePermHashSig a, OnePermHashSig b) {
-        for (int i = 0; i < a.sigSize; i++) {
-            if (a.sig[i] != b.sig[i]) {
-                return a.sig[i] - b.sig[i];
-            }
+    /**
+     * sig[offset, offset+sigSize) 这一个签名的64位指纹
+     */
+    static long fingerprint(int[] sig, int offset, int sigSize) {
+        long h = 0x9E3779B97F4A7C15L;
+        for (int i = 0; i < sigSize; i++) {
+            h ^= sig[offset + i] + 1;
+            h *= 0xBF58476D1CE4E5B9L;
+            h ^= h >>> 31;
         }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return h;
+    }
 
-        return 0;
+    /**
+     * 由超点A的细粒度签名得到粗粒度的签名：每 2^shift 个相邻的桶合并成一个桶，取其中的最小值
+     * 要求细粒度签名中保存的是重新编号后的原始值(没有取模，也没有旋转填充)，合并之后再按粗粒度的桶大小取桶内的值，
+     * 结果与直接用粗粒度的桶计算的单排列哈希签名相同，这样一次扫描邻居就可以得到所有层次的签名
+     *
+     * @param A        超点编号
+     * @param shift    每个粗粒度的桶包含 2^shift 个细粒度的桶
+     * @param bin_size 粗粒度的桶大小
+     * @param out      粗粒度的签名，长度至少为 ceil(sigSize / 2^shift)，空桶为-1
+     * @return 粗粒度签名的长度
+     */
+    public int coarsen(int A, int shift, int bin_size, int[] out) {
+        int length = ((sigSize - 1) >> shift) + 1;
+        for (int c = 0; c < length; c++) {
+            int min = -1;
+            int end = Math.min(sigSize, (c + 1) << shift);
+            for (int i = c << shift; i < end; i++) {
+                int value = get(A, i);
+                if (value != -1 && (min == -1 || value < min)) min = value;
+            }
+            out[c] = min == -1 ? -1 : min % bin_size;
+        }
+        return length;
     }
 
+    /**
+     * 比较两个超点的签名是否完全相同
+     */
+    public boolean equals(int A, int B) {
+        for (int i = 0; i < sigSize; i++) {
+            if (get(A, i) != get(B, i)) return false;
+        }
+        return true;
+    }
 }
@@ -0,0 +1,53 @@
+package graph_summarization;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * 简单的并行工具，把区间 [0, length) 平均切成若干段，在给定的 ForkJoinPool 上并行执行
+ */
+public class Parallel {
+
+    /**
+     * 对一段区间执行的任务
+     */
+    public interface RangeTask {
+        /**
+         * @param part  第几段
+         * @param start 这一段的开始位置(包含)
+         * @param end   这一段的结束位置(不包含)
+         */
+        void run(int part, int start, int end);
+    }
+
+    /**
+     * 计算第 part 段的开始位置，保证每次切分的边界都一样
+     */
+    public static int partStart(int length, int parts, int part) {
+        return (int) ((long) length * part / parts);
+    }
+
+    /**
+     * 把 [0, length) 切成 parts 段并行执行 task，pool 为null或者只有一段时直接在当前线程执行
+     *
+     * @param pool   线程池
+     * @param parts  切分的段数
+     * @param length 区间长度
+     * @param task   每一段要执行的任务
+     */
+    public static void forRange(ForkJoinPool pool, int parts, int length, RangeTask task) {
+        if (pool == null || parts <= 1) {
+            for (int part = 0; part < parts; part++)
+                task.run(part, partStart(length, parts, part), partStart(length, parts, part + 1));
+            return;
+        }
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int part = 0; part < parts; part++) {
+            final int p = part;
+            tasks.add(pool.submit(() -> task.run(p, partStart(length, parts, p), partStart(length, parts, p + 1))));
+        }
+        for (ForkJoinTask<?> t : tasks) t.join();
+    }
+}
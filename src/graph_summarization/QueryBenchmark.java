@@ -0,0 +1,94 @@
+package graph_summarization;
+
+import it.unimi.dsi.webgraph.ImmutableGraph;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * 比较在压缩结果上查询邻居与在原始 BVGraph 上调用 successorArray 的延迟
+ * 参数：basename(原图) summary(SummaryFile 文件) [queries(查询次数，默认100000)] [seed(随机数种子)]
+ * 先用所有查询预热并检查压缩结果的查询与原图一致，再分别计时
+ */
+public class QueryBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String basename = args[0];
+        String summary = args[1];
+        int queries = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : System.nanoTime();
+
+        long startTime = System.nanoTime();
+        ImmutableGraph graph = ImmutableGraph.loadMapped(basename);
+        System.out.println(String.format("@Load graph: %.3f ms", (System.nanoTime() - startTime) / 1e6));
+        startTime = System.nanoTime();
+        SummaryFile file = SummaryFile.load(summary);
+        System.out.println(String.format("@Load summary: %.3f ms", (System.nanoTime() - startTime) / 1e6));
+        startTime = System.nanoTime();
+        SummaryIndex index = new SummaryIndex(file);
+        System.out.println(String.format("@Build index: %.3f ms", (System.nanoTime() - startTime) / 1e6));
+        System.out.println("@Size: graph " + (new File(basename + ".graph").length() + new File(basename + ".offsets").length())
+                + " bytes, summary " + new File(summary).length() + " bytes");
+
+        int n = graph.numNodes();
+        Random random = new Random(seed);
+        int[] sources = new int[queries];
+        int[] targets = new int[queries];
+        for (int i = 0; i < queries; i++) {
+            sources[i] = random.nextInt(n);
+            // 一半查询随机取一个真实存在的邻居，一半取任意的顶点
+            int degree = graph.outdegree(sources[i]);
+            targets[i] = degree > 0 && random.nextBoolean() ? graph.successorArray(sources[i])[random.nextInt(degree)] : random.nextInt(n);
+        }
+
+        // 预热并检查结果
+        for (int i = 0; i < queries; i++) {
+            int v = sources[i];
+            int[] expected = Arrays.copyOf(graph.successorArray(v), graph.outdegree(v));
+            if (!Arrays.equals(expected, file.successors(v)) || !Arrays.equals(expected, index.successors(v)))
+                throw new IllegalStateException("successors(" + v + ") differ from the original graph");
+            boolean edge = Arrays.binarySearch(expected, targets[i]) >= 0;
+            if (edge != file.hasEdge(v, targets[i]) || edge != index.hasEdge(v, targets[i]))
+                throw new IllegalStateException("hasEdge(" + v + ", " + targets[i] + ") differs from the original graph");
+        }
+
+        long checksum = 0;
+        startTime = System.nanoTime();
+        for (int i = 0; i < queries; i++) {
+            int v = sources[i];
+            int[] successors = graph.successorArray(v);
+            checksum += graph.outdegree(v) > 0 ? successors[0] : 0;
+        }
+        report("successors  BVGraph", startTime, queries);
+        startTime = System.nanoTime();
+        for (int i = 0; i < queries; i++) checksum += first(file.successors(sources[i]));
+        report("successors  SummaryFile", startTime, queries);
+        startTime = System.nanoTime();
+        for (int i = 0; i < queries; i++) checksum += first(index.successors(sources[i]));
+        report("successors  SummaryIndex", startTime, queries);
+
+        startTime = System.nanoTime();
+        for (int i = 0; i < queries; i++) {
+            int v = sources[i];
+            if (Arrays.binarySearch(graph.successorArray(v), 0, graph.outdegree(v), targets[i]) >= 0) checksum++;
+        }
+        report("hasEdge     BVGraph", startTime, queries);
+        startTime = System.nanoTime();
+        for (int i = 0; i < queries; i++) if (file.hasEdge(sources[i], targets[i])) checksum++;
+        report("hasEdge     SummaryFile", startTime, queries);
+        startTime = System.nanoTime();
+        for (int i = 0; i < queries; i++) if (index.hasEdge(sources[i], targets[i])) checksum++;
+        report("hasEdge     SummaryIndex", startTime, queries);
+        System.out.println("checksum: " + checksum);
+    }
+
+    private static int first(int[] list) {
+        return list.length > 0 ? list[0] : 0;
+    }
+
+    private static void report(String name, long startTime, int queries) {
+        double elapsed = (System.nanoTime() - startTime) / 1e9;
+        System.out.println(String.format("@%s: %.3f us/query (%.3f seconds)", name, elapsed * 1e6 / queries, elapsed));
+    }
+}
@@ -1,24 +1,39 @@
 package graph_summarization;
 
+import gnu.trove.list.array.TIntArrayList;
+import it.unimi.dsi.webgraph.ImmutableGraph;
+
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Random;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.List;
 
 public class SWeG extends  Summary{
 
-    // 用于对顶点的重新编号
-    int[] h;
-    // shingle数组，在顶点分组时使用
-    int[] F;
-    // 排序后的组别数组，满足 F[G[i]] <= F[G[i+1]] 即相同F值的在附近安排在同一个组内
-    Integer[] G;
+    // 用于对顶点的重新编号，与超点状态放在同一个位置(堆上或堆外)
+    VertexArray h;
+    // shingle数组，在顶点分组时使用，与超点状态放在同一个位置
+    VertexArray F;
+    // 排序后的组别数组，满足 F.get(G[i]) <= F.get(G[i+1]) 即相同F值的在附近安排在同一个组内
+    int[] G;
+    // 分组时排序用的 (F[A]+1, A) 打包值
+    long[] sort_keys;
     // 找到G数组里的第一个组的第一个顶点的index
     int g_start;
     // 分组后的组别数量
     int num_groups;
     // 用于分组的二维数组，分别记录每个组的shingle值和第几组
     int[][] group_prop;
+    // 组大小的上限，超过上限的组会用新的哈希函数重新计算 shingle 值递归地拆分，为0时不拆分
+    int max_group_size = 0;
+    // 递归拆分的最大深度，超过之后仍然过大的组(如邻居完全相同的大量顶点)直接按上限切块
+    static final int MAX_SPLIT_DEPTH = 10;
+    // 增量分组一次预先计算的轮数，为0时每轮重新扫描所有顶点的邻居
+    int incremental_rounds = 0;
+    // 每个超点在各轮哈希函数下的 shingle 值，超点A第r轮的值在下标 A*incremental_rounds + r，与超点状态放在同一个位置(堆上或堆外)
+    VertexArray round_shingles;
+    // 各轮哈希函数的参数，以及下一轮使用第几个
+    long[] round_salts;
+    int round;
 
     /**
      * 构造函数，继承了Summary父类的构造函数，同时初始化自己的数据结构
@@ -30,54 +45,170 @@ public class SWeG extends  Summary{
         super(basename);
     }
 
+    /**
+     * 设置分组阶段的组大小上限，组内合并需要 O(g^2) 次 Jaccard Similarity 计算，
+     * 限制组的大小之后，每一轮合并的代价不再受度数极大的顶点形成的巨大分组影响
+     *
+     * @param max_group_size 组大小的上限，小于等于0时不拆分
+     */
+    public void setMaxGroupSize(int max_group_size) {
+        this.max_group_size = Math.max(0, max_group_size);
+    }
+
+    /**
+     * 设置增量分组：一次扫描邻居预先计算 rounds 个独立哈希函数下每个超点的 shingle 值，之后每一轮分组使用其中一个，
+     * 超点合并时新超点的值就是两个超点的值取最小值，不需要重新扫描，rounds 轮用完之后再换一批新的哈希函数
+     * 每一轮使用的哈希函数仍然是新的，分组的随机性与每轮重新编号相同，只是用 shingleValue(u, salt) 代替了重新编号 h
+     *
+     * @param rounds 一次预先计算的轮数，小于等于0时每轮重新计算
+     */
+    public void setIncrementalDivide(int rounds) {
+        incremental_rounds = Math.max(0, rounds);
+        round_shingles = null;
+    }
+
+    /**
+     * 用 incremental_rounds 个新的哈希函数计算所有超点的 shingle 值，每个顶点的邻居只扫描一次
+     */
+    private void computeRoundShingles() {
+        int rounds = incremental_rounds;
+        round_salts = new long[rounds];
+        for (int r = 0; r < rounds; r++) round_salts[r] = random.nextLong();
+        if (round_shingles == null) round_shingles = vertexArray((long) n * rounds);
+        parallelRange(n, (part, start, end) -> {
+            ImmutableGraph graph = graph();
+            for (int A = start; A < end; A++) {
+                if (I.get(A) == -1) continue;
+                long offset = (long) A * rounds;
+                for (int r = 0; r < rounds; r++) round_shingles.set(offset + r, Integer.MAX_VALUE);
+                for (int v = I.get(A); v != -1; v = J.get(v)) {
+                    int[] neighbors = groupingNeighbours(graph, v);
+                    int degree = groupingDegree(graph, v);
+                    for (int i = -1; i < degree; i++) {
+                        int w = i == -1 ? v : neighbors[i];
+                        for (int r = 0; r < rounds; r++) {
+                            int f_w = saltedHash(w, round_salts[r]);
+                            if (round_shingles.get(offset + r) > f_w) round_shingles.set(offset + r, f_w);
+                        }
+                    }
+                }
+            }
+        });
+        round = 0;
+    }
+
+    /**
+     * 合并超点的同时更新预先计算的 shingle 值：合并后超点的 shingle 值是两个超点的值取最小值
+     */
+    @Override
+    protected void updateSuperNode(int super_node_a, int super_node_b) {
+        super.updateSuperNode(super_node_a, super_node_b);
+        if (round_shingles == null) return;
+        long a = (long) Math.min(super_node_a, super_node_b) * incremental_rounds;
+        long b = (long) Math.max(super_node_a, super_node_b) * incremental_rounds;
+        for (int r = 0; r < incremental_rounds; r++) {
+            if (round_shingles.get(b + r) < round_shingles.get(a + r)) round_shingles.set(a + r, round_shingles.get(b + r));
+        }
+    }
+
     /**
      * 对顶点的一次重新编号 h: |V| -> |V|
      */
     private void randomPermutation() {
-        h = new int[n];
+        // 数组在各轮之间重复使用，每轮重新从恒等排列开始洗牌，结果与重新分配相同
+        if (h == null) h = vertexArray(n);
         for (int i = 0; i < n; i++) {
-            h[i] = i;
+            h.set(i, i);
         }
-        Random rnd = new Random();
-        rnd = ThreadLocalRandom.current();
-        for (int i = h.length - 1; i > 0; i--) {
-            int index = rnd.nextInt(i + 1);
-            int a = h[index];
-            h[index] = h[i];
-            h[i] = a;
+        for (int i = n - 1; i > 0; i--) {
+            int index = random.nextInt(i + 1);
+            int a = h.get(index);
+            h.set(index, h.get(i));
+            h.set(i, a);
         }
     }
 
     /**
-     * 返回顶点u的shingle值, 方法是计算顶点集合 {u Union N(u)} 的最小 shingle 值
+     * 返回顶点u的shingle值, 方法是计算顶点集合 {u Union N(u)} 的最小 shingle 值，hub 的 N(u) 是邻居样本(见 setHubDegree)
      *
      * @param u 顶点的编号
      * @return
      */
-    private int shingleValue(int u) {
-        int f_u = h[u];
-        int[] neighbors = Gr.successorArray(u);
-        for (int i = 0; i < neighbors.length; i++) {
+    int shingleValue(int u) {
+        int f_u = h.get(u);
+        ImmutableGraph graph = graph();
+        int[] neighbors = groupingNeighbours(graph, u);
+        int degree = groupingDegree(graph, u);
+        for (int i = 0; i < degree; i++) {
             int v = neighbors[i];
-            if (f_u > h[v]) {
-                f_u = h[v];
+            int h_v = h.get(v);
+            if (f_u > h_v) {
+                f_u = h_v;
             }
         }
         return f_u;
     }
 
     /**
-     * 计算一个组包含多少的顶点，即组的大小
+     * 使用以 salt 为参数的哈希函数代替重新编号 h，返回顶点u的 shingle 值，用于拆分过大的组
+     * 每次拆分只需要一个新的 salt，不需要重新生成 O(n) 的排列
      *
-     * @param arr    排序后各组的shingle值，按照shingle值升序排序
-     * @param key    要计算大小的那组的shingle值
-     * @param st_pos 要计算大小的那组的开始index
+     * @param u    顶点的编号
+     * @param salt 哈希函数的参数
      * @return
      */
-    private int groupLength(int[] arr, int key, int st_pos) {
-        int counter = 1;
-        while (arr[st_pos++] == key && st_pos < arr.length - 1) counter++;
-        return counter;
+    int shingleValue(int u, long salt) {
+        int f_u = saltedHash(u, salt);
+        ImmutableGraph graph = graph();
+        int[] neighbors = groupingNeighbours(graph, u);
+        int degree = groupingDegree(graph, u);
+        for (int i = 0; i < degree; i++) {
+            int f_v = saltedHash(neighbors[i], salt);
+            if (f_u > f_v) {
+                f_u = f_v;
+            }
+        }
+        return f_u;
+    }
+
+    /**
+     * 递归地拆分 G[start, end) 这一组：组大小不超过上限时直接作为一组，否则用新的哈希函数重新计算组内每个超点的 shingle 值，
+     * 按新的 shingle 值排序后得到若干子组，再分别拆分
+     *
+     * @param start  组在 G 中的开始位置
+     * @param end    组在 G 中的结束位置
+     * @param depth  当前的递归深度
+     * @param starts 拆分得到的每个组在 G 中的开始位置，按顺序追加
+     */
+    private void splitGroup(int start, int end, int depth, TIntArrayList starts) {
+        if (end - start <= max_group_size) {
+            starts.add(start);
+            return;
+        }
+        if (depth > MAX_SPLIT_DEPTH) {
+            for (int i = start; i < end; i += max_group_size) starts.add(i);
+            return;
+        }
+        long salt = random.nextLong();
+        // 把 (新的shingle值, A) 打包成一个long排序，相同shingle值的超点按编号升序排列
+        long[] keys = new long[end - start];
+        parallelRange(end - start, (part, from, to) -> {
+            for (int i = from; i < to; i++) {
+                int A = G[start + i];
+                int f_A = Integer.MAX_VALUE;
+                for (int v = I.get(A); v != -1; v = J.get(v)) f_A = Math.min(f_A, shingleValue(v, salt));
+                keys[i] = ((long) f_A << 32) | A;
+            }
+        });
+        Arrays.sort(keys);
+        for (int i = 0; i < keys.length; i++) G[start + i] = (int) keys[i];
+        int sub_start = 0;
+        for (int i = 1; i <= keys.length; i++) {
+            if (i == keys.length || (keys[i] >>> 32) != (keys[sub_start] >>> 32)) {
+                splitGroup(start + sub_start, start + i, depth + 1, starts);
+                sub_start = i;
+            }
+        }
     }
 
     /**
@@ -88,44 +219,55 @@ public class SWeG extends  Summary{
     public double dividePhase() {
         System.out.println("# Divide Phase");
         long startTime = System.currentTimeMillis();
-        // 首先对顶点进行一个编号重排
-        randomPermutation();
-        // 初始化F数组, 用于存储每个顶点的shingle值
-        F = new int[n];
-        for (int A = 0; A < n; A++)
-            F[A] = -1;
-        for (int A = 0; A < n; A++) {
-            // A不是一个超点
-            if (I[A] == -1)
-                continue;
-            // 将超点A的shingle值先初始化成最大值，然后再逐渐通过超点包含的所有顶点的shingle值逐渐下降
-            F[A] = n;
-            for (int v = I[A]; ; v = J[v]) {
-                int fv = shingleValue(v);
-                if (F[A] > fv)
-                    F[A] = fv;
-                if (J[v] == -1)
-                    break;
-            }
+        // F、sort_keys 和 G 每轮都会被完整覆盖，只分配一次
+        if (F == null) F = vertexArray(n);
+        if (incremental_rounds > 0) {
+            // 增量分组，直接读取预先计算的这一轮的 shingle 值
+            if (round_shingles == null || round == incremental_rounds) computeRoundShingles();
+            int r = round++;
+            for (int A = 0; A < n; A++) F.set(A, I.get(A) == -1 ? -1 : round_shingles.get((long) A * incremental_rounds + r));
+        } else {
+            // 首先对顶点进行一个编号重排
+            randomPermutation();
+            // 初始化F数组, 用于存储每个顶点的shingle值，各个超点之间互不影响，可以按区间并行计算
+            parallelRange(n, (part, start, end) -> {
+                for (int A = start; A < end; A++) {
+                    // A不是一个超点
+                    if (I.get(A) == -1) {
+                        F.set(A, -1);
+                        continue;
+                    }
+                    // 将超点A的shingle值先初始化成最大值，然后再逐渐通过超点包含的所有顶点的shingle值逐渐下降
+                    int f_A = n;
+                    for (int v = I.get(A); v != -1; v = J.get(v)) {
+                        int fv = shingleValue(v);
+                        if (f_A > fv)
+                            f_A = fv;
+                    }
+                    F.set(A, f_A);
+                }
+            });
         }
 
-        // 对分组进行排序
-        G = new Integer[n];
-        for (int i = 0; i < n; i++) G[i] = i;
-        Arrays.sort(G, (o1, o2) -> Integer.compare(F[o1], F[o2]));
+        // 对分组进行排序，把 (F[A]+1, A) 打包成一个long进行基数排序，相同F值的超点按编号升序排列
+        if (sort_keys == null) sort_keys = new long[n];
+        for (int A = 0; A < n; A++) sort_keys[A] = ((long) F.get(A) + 1) << 32 | A;
+        LongRadixSort.sort(sort_keys, pool, num_threads);
+        if (G == null) G = new int[n];
+        for (int i = 0; i < n; i++) G[i] = (int) sort_keys[i];
 
         // 找到第一个组的开始index
         g_start = 0;
-        while (F[G[g_start]] == -1)
+        while (F.get(G[g_start]) == -1)
             g_start++;
 
         // 计算组的数量
         num_groups = 0;
         int g = -1;
         for (int i = g_start; i < n; i++) {
-            if (F[G[i]] != g) {
+            if (F.get(G[i]) != g) {
                 num_groups++;
-                g = F[G[i]];
+                g = F.get(G[i]);
             }
         }
 
@@ -133,14 +275,31 @@ public class SWeG extends  Summary{
         g = -1;
         int counter = 0;
         for (int i = g_start; i < n; i++) {
-            if (F[G[i]] != g) {
-                group_prop[counter][0] = F[G[i]];
+            if (F.get(G[i]) != g) {
+                group_prop[counter][0] = F.get(G[i]);
                 group_prop[counter][1] = i;
                 counter++;
-                g = F[G[i]];
+                g = F.get(G[i]);
             }
         }
 
+        // 拆分超过大小上限的组，拆分后的子组在 G 中仍然是连续的，shingle值记为原来的组的值
+        if (max_group_size > 0) {
+            TIntArrayList starts = new TIntArrayList(num_groups);
+            for (int i = 0; i < num_groups; i++) {
+                splitGroup(group_prop[i][1], i + 1 < num_groups ? group_prop[i + 1][1] : n, 1, starts);
+            }
+            num_groups = starts.size();
+            group_prop = new int[num_groups][2];
+            for (int i = 0; i < num_groups; i++) {
+                group_prop[i][0] = F.get(G[starts.get(i)]);
+                group_prop[i][1] = starts.get(i);
+            }
+        }
+        for (int i = 0; i < num_groups; i++) {
+            metrics.recordGroup((i + 1 < num_groups ? group_prop[i + 1][1] : n) - group_prop[i][1]);
+        }
+
         return (System.currentTimeMillis() - startTime) / 1000.0;
     }
 
@@ -152,15 +311,11 @@ public class SWeG extends  Summary{
         System.out.println("# Merge Phase");
         System.out.println(String.format("Threshold=%5f", threshold));
         long startTime = System.currentTimeMillis();
-        int idx = 0;
-        // temp <- F[G]
-        int[] temp = new int[n];
-        for (int i = 0; i < n; i++) temp[i] = F[G[i]];
-
-        // 开始遍历每个组
+        // 开始遍历每个组，收集所有需要合并的组
+        List<int[]> groups = new ArrayList<>();
         for (int i = 0; i < num_groups; i++) {
             int st_position = group_prop[i][1];
-            int group_size = groupLength(temp, group_prop[i][0], st_position) - 1;
+            int group_size = (i + 1 < num_groups ? group_prop[i + 1][1] : n) - st_position;
             // 如果一个组只有一个顶点则直接跳过该组
             if (group_size < 2) continue;
 
@@ -172,52 +327,9 @@ public class SWeG extends  Summary{
                 Q[counter++] = G[j];
             }
 
-            HashMap<Integer, HashMap<Integer, Integer>> hm = createW(Q, group_size);
-            int initial_size = hm.size();
-            while (hm.size() > 1) {
-                Random rand = new Random();
-                // 从组内随机找到一个超点A
-                int A = rand.nextInt(initial_size);
-                if (hm.get(A) == null)
-                    continue;
-
-                double max = 0;
-                idx = -1;
-                // 遍历组内其他顶点，找到与A的Jaccard Similarity最大的那个顶点
-                for (int j = 0; j < initial_size; j++) {
-                    if (hm.get(j) == null)
-                        continue;
-                    if (j == A) continue;
-                    double jaccard_similarity = computeJacSim(hm.get(A), hm.get(j));
-                    if (jaccard_similarity > max) {
-                        max = jaccard_similarity;
-                        idx = j;
-                    }
-                }
-                if (idx == -1) {
-                    hm.remove(A);
-                    continue;
-                }
-
-                // 这里做了一个交换，目的是把编号较大的顶点合并到编号较小的顶点里面
-                if (Q[A] > Q[idx]) {
-                    int t = A;
-                    A = idx;
-                    idx = t;
-                }
-
-                // 计算两个顶点之间的合并收益
-                double savings = computeSaving(hm.get(A), hm.get(idx), Q[A], Q[idx]);
-                if (savings >= threshold) {
-                    HashMap<Integer, Integer> w_update = updateW(hm.get(A), hm.get(idx));
-                    hm.replace(A, w_update);
-                    hm.remove(idx);
-                    updateSuperNode(Q[A], Q[idx]);
-                } else {
-                    hm.remove(A);
-                }
-            }
+            groups.add(Q);
         }
+        mergeGroups(groups, threshold);
         return (System.currentTimeMillis() - startTime) / 1000.0;
     }
 
@@ -228,16 +340,20 @@ public class SWeG extends  Summary{
     @Override
     public void run(int iteration, int print_iteration_offset) {
         System.out.println("----------------------------------- SWeG ALGORITHM ----------------------------------------");
-        for (int it = 1; it <= iteration; it++) {
+        int resumed = resumeCheckpoint(iteration, print_iteration_offset);
+        if (resume_output) outputPhases(resumed, this::encodePhase);
+        for (int it = resumed + 1; it <= iteration; it++) {
             System.out.println("\n------------------------- ITERATION " + it);
             double threshold = 1 / ((it + 1) * 1.0);
 //            double Threshold = 0.5 - it * 0.05;
-            System.out.println(String.format("@Time: %5f seconds", dividePhase()));
-            System.out.println(String.format("@Time: %5f seconds", mergePhase(threshold)));
+            reportPhase("divide", this::dividePhase);
+            awaitCheckpoint();
+            reportPhase("merge", () -> mergePhase(threshold));
+            saveCheckpoint(it, threshold);
             if (it % print_iteration_offset == 0) {
-                System.out.println(String.format("@Time: %5f seconds", encodePhase()));
-                evaluatePhase();
+                outputPhases(it, this::encodePhase);
             }
         }
+        awaitCheckpoint();
     }
 }
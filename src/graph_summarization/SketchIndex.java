@@ -0,0 +1,130 @@
+package graph_summarization;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+import java.util.Arrays;
+
+/**
+ * 合并小组内的近似最近邻索引，代替对组内所有超点逐个计算 Jaccard Similarity
+ * 每个超点的 WeightVector 被压缩成一个加权 MinHash 草图：把 counts[i] 条指向顶点 ids[i] 的边看成 counts[i] 个不同的元素 (ids[i], j)，
+ * 用单排列哈希把它们分到 SKETCH_SIZE 个桶里取最小值，两个草图相同位置取值相等的概率就是 computeJacSim 计算的加权 Jaccard Similarity
+ * 草图按 BANDS 段、每段 ROWS 个位置建立 LSH 桶，查询时只检查至少有一段完全相同的超点，按草图估计的相似度取前 SHORTLIST 个
+ * 超点合并之后重新计算草图并插入新的桶，旧桶中的记录不删除，查询时按当前的草图重新估计，不影响正确性
+ */
+public class SketchIndex {
+    static final int SKETCH_SIZE = 32;
+    static final int BANDS = 8;
+    static final int ROWS = SKETCH_SIZE / BANDS;
+    // 每次查询最多返回的候选数量，以及最多检查的候选数量
+    static final int SHORTLIST = 8;
+    static final int MAX_CANDIDATES = 16 * SHORTLIST;
+    // 旋转填充时所有空桶都向右借用
+    private static final int[] ROTATION = new int[SKETCH_SIZE];
+
+    static {
+        Arrays.fill(ROTATION, 1);
+    }
+
+    private final long seed;
+    // 组内位置i的草图是 sketches[i*SKETCH_SIZE, (i+1)*SKETCH_SIZE)，没有邻居的超点草图全为-1，不进入任何桶
+    private final int[] sketches;
+    // 每一段的 LSH 桶，key 是该段草图的指纹，value 是组内位置
+    private final TLongObjectHashMap<TIntArrayList>[] buckets;
+    // 查询时去重用的时间戳
+    private final int[] stamp;
+    private int current;
+
+    /**
+     * @param hm   组内每个超点的 WeightVector，为null的位置不建立索引
+     * @param seed 哈希函数的种子
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public SketchIndex(WeightVector[] hm, long seed) {
+        this.seed = seed;
+        sketches = new int[hm.length * SKETCH_SIZE];
+        stamp = new int[hm.length];
+        buckets = new TLongObjectHashMap[BANDS];
+        for (int b = 0; b < BANDS; b++) buckets[b] = new TLongObjectHashMap<>();
+        for (int i = 0; i < hm.length; i++) {
+            if (hm[i] != null) update(i, hm[i]);
+        }
+    }
+
+    /**
+     * 重新计算位置i的草图并插入对应的桶，在超点合并之后调用
+     */
+    public void update(int i, WeightVector w) {
+        int offset = i * SKETCH_SIZE;
+        Arrays.fill(sketches, offset, offset + SKETCH_SIZE, -1);
+        if (w.size == 0) return;
+        for (int t = 0; t < w.size; t++) {
+            for (int j = 0; j < w.counts[t]; j++) {
+                long h = mix(((long) w.ids[t] << 32 | j) + seed);
+                int bin = (int) h & (SKETCH_SIZE - 1);
+                int value = (int) (h >>> 33);
+                if (sketches[offset + bin] == -1 || value < sketches[offset + bin]) sketches[offset + bin] = value;
+            }
+        }
+        OnePermHashSig.densify(sketches, offset, SKETCH_SIZE, ROTATION);
+        for (int b = 0; b < BANDS; b++) {
+            long key = OnePermHashSig.fingerprint(sketches, offset + b * ROWS, ROWS);
+            TIntArrayList bucket = buckets[b].get(key);
+            if (bucket == null) {
+                bucket = new TIntArrayList(4);
+                buckets[b].put(key, bucket);
+            }
+            bucket.add(i);
+        }
+    }
+
+    /**
+     * 查找与位置i最相似的若干个超点，只返回仍然存在(hm 中不为null)的位置，按估计的相似度从高到低排列
+     *
+     * @param i   查询的位置
+     * @param hm  组内当前的 WeightVector
+     * @param out 返回的候选位置，长度至少为 SHORTLIST
+     * @return 候选的数量
+     */
+    public int candidates(int i, WeightVector[] hm, int[] out) {
+        if (++current == 0) {
+            Arrays.fill(stamp, 0);
+            current = 1;
+        }
+        stamp[i] = current;
+        int offset = i * SKETCH_SIZE;
+        int[] scores = new int[SHORTLIST];
+        int count = 0, examined = 0;
+        for (int b = 0; b < BANDS && examined < MAX_CANDIDATES; b++) {
+            TIntArrayList bucket = buckets[b].get(OnePermHashSig.fingerprint(sketches, offset + b * ROWS, ROWS));
+            if (bucket == null) continue;
+            for (int t = 0; t < bucket.size() && examined < MAX_CANDIDATES; t++) {
+                int j = bucket.getQuick(t);
+                if (stamp[j] == current || hm[j] == null) continue;
+                stamp[j] = current;
+                examined++;
+                int score = 0;
+                for (int s = 0; s < SKETCH_SIZE; s++) {
+                    if (sketches[offset + s] == sketches[j * SKETCH_SIZE + s]) score++;
+                }
+                // 插入排序，保留得分最高的 SHORTLIST 个
+                if (count == SHORTLIST && score <= scores[count - 1]) continue;
+                int pos = count < SHORTLIST ? count++ : count - 1;
+                while (pos > 0 && scores[pos - 1] < score) {
+                    scores[pos] = scores[pos - 1];
+                    out[pos] = out[pos - 1];
+                    pos--;
+                }
+                scores[pos] = score;
+                out[pos] = j;
+            }
+        }
+        return count;
+    }
+
+    private static long mix(long x) {
+        x = (x ^ (x >>> 30)) * 0xBF58476D1CE4E5B9L;
+        x = (x ^ (x >>> 27)) * 0x94D049BB133111EBL;
+        return x ^ (x >>> 31);
+    }
+}
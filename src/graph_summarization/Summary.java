@@ -2,30 +2,98 @@ package graph_summarization;
 
 import gnu.trove.iterator.TIntIterator;
 import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.set.hash.TIntHashSet;
 import it.unimi.dsi.webgraph.ImmutableGraph;
 import org.javatuples.Pair;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.DoubleSupplier;
 
 public class Summary {
     // webgraph 框架中的不变图对象，可以用来获取图的顶点和边属性
     ImmutableGraph Gr;
     // 图的顶点数量
     int n;
-    // 超点数组，用来指明每个顶点的超点编号，如 S[3]=2 表示原图顶点3的超点编号是2
-    int[] S;
+    // 超点数组，采用并查集的形式记录每个顶点的超点编号，S[v]=v 表示v是超点的代表顶点(即超点编号)，否则沿着 S 向上查找，
+    // 如 S[3]=2, S[2]=2 表示原图顶点3的超点编号是2，需要通过 find(v) 读取顶点的超点编号
+    VertexArray S;
     // 记录超点的第一个顶点，如 I[3]=5 表示超点编号3的第一个子顶点是5，而 I[4]=-1 则表示没有编号是4的超点
-    int[] I;
+    VertexArray I;
     // 记录同属一个超点的下一个顶点是哪个，就像是链表的next指针，如 I[3]=9 表示和顶点3同处一个超点的下一个顶点是9
-    int[] J;
+    VertexArray J;
+    // 记录超点链表的最后一个顶点，合并时可以直接把两个链表首尾相接
+    VertexArray tail;
+    // 记录每个超点当前包含的顶点数量，只对超点编号有效
+    VertexArray size;
+    // 超点状态放在堆外时映射文件所在的目录，为null时使用 allocateDirect 分配的内存，见 setOffHeap
+    String off_heap_directory;
 
     // 用于记录每个超点的大小
     int[] supernode_sizes;
 
+    // 随机数种子以及由它生成的随机数，固定种子时整个算法的结果是确定的
+    long seed;
+    Random random;
+    // 分组和合并阶段使用的线程数，为1时单线程执行
+    int num_threads = 1;
+    // 多线程时使用的线程池，单线程时为null
+    ForkJoinPool pool;
+    // 合并阶段每个超点所在的组编号以及在组内的位置，不在任何组内时为-1
+    VertexArray group_of;
+    VertexArray pos_in_group;
+    // 压缩结果的输出文件，为null时不写出
+    String output;
+    // 度数超过 hub_degree 的顶点称为 hub，hub[v] 标记顶点v是否是 hub，为0时不区分
+    int hub_degree = 0;
+    boolean[] hub;
+    // hub_rank 把 hub 映射到下面两个数组的下标：hub_samples 是按固定的哈希值取最小的 hub_degree 个邻居(升序)，分组阶段代替全部邻居；
+    // hub_vectors 是 hub 自己的 WeightVector，createW 直接使用，不再每轮重新解码和排序 hub 的邻居
+    TIntIntHashMap hub_rank;
+    int[][] hub_samples;
+    WeightVector[] hub_vectors;
+    // 合并阶段使用 SketchIndex 查找候选超点的最小组大小，更小的组逐个计算 Jaccard Similarity，为0时不使用
+    int sketch_group_size = 0;
+    // 每个阶段的累计耗时(秒)，按阶段第一次出现的顺序排列，由 run 方法通过 reportPhase 记录
+    LinkedHashMap<String, Double> phase_seconds = new LinkedHashMap<>();
+    // 每个阶段的统计指标，见 Metrics
+    Metrics metrics = new Metrics(getClass().getSimpleName());
+    // 统计指标的输出文件，为null时不写出
+    String metrics_output;
+    // 有损压缩时每个顶点允许的误差占度数的比例，为0时无损压缩；以及最近一次 evaluateError 得到的误差与度数之比的最大值和平均值
+    double error_bound = 0;
+    double max_error, mean_error;
+    // 检查点文件，为null时不写检查点，每 checkpoint_interval 轮合并之后写一次，resume 为真时 run 从检查点继续
+    String checkpoint;
+    int checkpoint_interval = 1;
+    boolean resume;
+    // 本次运行的迭代次数和输出间隔，由 resumeCheckpoint 记录并写入检查点，恢复时必须与检查点相同
+    int run_iterations;
+    int run_print_offset = 1;
+    // 从检查点恢复时，检查点那一轮的编码和存储还没有完成，run 需要先补上
+    boolean resume_output;
+    // 在后台写检查点的线程，以及正在写出的检查点，下一次合并修改 S、I、J 之前需要等待它完成
+    ExecutorService checkpoint_writer;
+    Future<?> pending_checkpoint;
+    // 最近一次 evaluatePhase 的结果：压缩率、超点数量以及压缩后的边数
+    double compression;
+    int supernode_count;
+    long summary_edges;
+
     // 下面是用于encode superEdges的数据结构
     HashMap<Integer, TIntArrayList> sn_to_n;
-    ArrayList<Pair<Integer, Integer>> P;
+    // 超边 <P_0[i], P_1[i]>，P_0[i] <= P_1[i]
+    TIntArrayList P_0, P_1;
     TIntArrayList Cp_0, Cp_1;
     TIntArrayList Cm_0, Cm_1;
 
@@ -40,20 +108,255 @@ public class Summary {
         Gr = ImmutableGraph.loadMapped(basename);
         n = Gr.numNodes();
 
-        S = new int[n];
-        I = new int[n];
-        J = new int[n];
+        S = VertexArray.onHeap(n);
+        I = VertexArray.onHeap(n);
+        J = VertexArray.onHeap(n);
+        tail = VertexArray.onHeap(n);
+        size = VertexArray.onHeap(n);
 
-        // 初始化每个顶点为一个超点，即分别设置 S[i]=i, I[i]=i 和 J[i]=i
+        // 初始化每个顶点为一个超点，即分别设置 S[i]=i, I[i]=i 和 J[i]=-1
         for (int i = 0; i < n; i++) {
-            S[i] = i;  //Initial each node as a supernode
-            I[i] = i;
-            J[i] = -1;
+            S.set(i, i);  //Initial each node as a supernode
+            I.set(i, i);
+            J.set(i, -1);
+            tail.set(i, i);
+            size.set(i, 1);
+        }
+        setSeed(System.nanoTime());
+    }
+
+    // 每个线程各自持有的图副本，webgraph 的图对象不能被多个线程同时访问
+    private ThreadLocal<ImmutableGraph> graph_copy = ThreadLocal.withInitial(() -> Gr.copy());
+
+    /**
+     * 返回当前线程可以使用的图对象，多线程的阶段需要通过它访问图，而不是直接使用 Gr
+     */
+    protected ImmutableGraph graph() {
+        return graph_copy.get();
+    }
+
+    /**
+     * 设置随机数种子，相同的种子会得到相同的压缩结果(与合并阶段的线程数无关)
+     *
+     * @param seed 随机数种子
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+        random = new Random(seed);
+    }
+
+    /**
+     * 设置分组和合并阶段使用的线程数
+     *
+     * @param num_threads 线程数，小于等于1时单线程执行
+     */
+    public void setThreads(int num_threads) {
+        this.num_threads = Math.max(1, num_threads);
+        if (pool != null) pool.shutdown();
+        pool = this.num_threads > 1 ? new ForkJoinPool(this.num_threads) : null;
+    }
+
+    /**
+     * 设置邻接表缓存：把 Gr 一次性并行解码成堆外的 CSRGraph，之后所有阶段都从缓存读取邻居，不再重复解码 BVGraph
+     * 需要的内存超过 max_bytes 或者堆外内存不足(见 -XX:MaxDirectMemorySize)时继续使用映射的 BVGraph
+     * 使用当前的线程池解码，需要在 setThreads 之后、run 之前调用
+     *
+     * @param max_bytes 缓存最多使用的字节数，小于等于0时不使用缓存
+     */
+    public void setAdjacencyCache(long max_bytes) {
+        if (max_bytes <= 0 || Gr instanceof CSRGraph) return;
+        long bytes = CSRGraph.bytes(Gr);
+        if (bytes > max_bytes) {
+            System.out.println("Adjacency cache needs " + bytes + " bytes, more than " + max_bytes + ", using the mapped graph");
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        try {
+            Gr = CSRGraph.load(Gr, pool, pool == null ? 1 : num_threads * 4);
+        } catch (OutOfMemoryError e) {
+            System.out.println("Adjacency cache of " + bytes + " bytes does not fit in memory (" + e.getMessage() + "), using the mapped graph");
+            return;
+        }
+        // 已经创建的线程副本仍然指向原来的图，重新创建
+        graph_copy = ThreadLocal.withInitial(() -> Gr.copy());
+        System.out.println("Adjacency cache: " + bytes + " bytes in " + ((System.currentTimeMillis() - startTime) / 1000.0) + " seconds");
+    }
+
+    /**
+     * 把 S、I、J、tail 和 size 移到堆外，之后通过 vertexArray 分配的数组也放在同一个位置：SWeG 和 LDME 的重新编号 h、SWeG 的 shingle 数组 F、
+     * 合并阶段的 group_of 和 pos_in_group、LDME 的签名矩阵(F_OPH 以及增量分组的 round_signatures)和 SWeG 增量分组的 round_shingles，
+     * 这些数组只分配一次，各轮之间重复使用，移出之后 GC 也不再扫描它们；可以在 run 之前的任何时候调用，已有的内容会被复制过去
+     * <p>
+     * 这只是部分移出，堆的峰值仍然随 n 增长：分组阶段排序用的数组仍然在堆上(SWeG 的 G 和 sort_keys，LDME 的 G、排序的键和签名指纹，
+     * 每个超点约12~20字节，基数排序时还有同样大小的临时数组)，编码阶段和 dropPhase 每次调用分配的 supernode_sizes、S 的副本等数组也在堆上
+     * computeSaving 的 SavingBuffer 是按两个 WeightVector 的长度分配的哈希表，与 n 无关
+     *
+     * @param directory 映射文件所在的目录，可以超过物理内存；为null时使用 allocateDirect 分配的堆外内存(见 -XX:MaxDirectMemorySize)
+     * @throws IOException 创建或映射文件失败
+     */
+    public void setOffHeap(String directory) throws IOException {
+        if (S.isOffHeap()) return;
+        VertexArray[] arrays = {S, I, J, tail, size};
+        for (int i = 0; i < arrays.length; i++) {
+            VertexArray off_heap = VertexArray.offHeap(n, directory);
+            off_heap.copyFrom(arrays[i]);
+            arrays[i] = off_heap;
+        }
+        S = arrays[0];
+        I = arrays[1];
+        J = arrays[2];
+        tail = arrays[3];
+        size = arrays[4];
+        off_heap_directory = directory;
+        System.out.println("Supernode state off heap: " + 5L * n * Integer.BYTES + " bytes" + (directory == null ? "" : " mapped in " + directory));
+    }
+
+    /**
+     * 分配一个与 S 放在同一个位置(堆上或堆外)的数组，初始值全为0
+     */
+    protected VertexArray vertexArray(long length) {
+        if (!S.isOffHeap()) return VertexArray.onHeap(length);
+        try {
+            return VertexArray.offHeap(length, off_heap_directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 设置检查点：每 interval 轮合并结束之后，把合并状态写到 checkpoint 文件(见 Checkpoint)，写出在后台线程进行，与编码和下一轮的分组阶段重叠
+     * resume 为真且文件存在时，run 先从检查点恢复，补上检查点那一轮没有完成的编码和存储，再从下一轮迭代继续；
+     * resume 为假时已有的检查点会被覆盖
+     *
+     * @param checkpoint 检查点文件名，为null时不写检查点
+     * @param interval   每多少轮写一次
+     * @param resume     是否从已有的检查点继续
+     */
+    public void setCheckpoint(String checkpoint, int interval, boolean resume) {
+        this.checkpoint = checkpoint;
+        this.checkpoint_interval = Math.max(1, interval);
+        this.resume = resume;
+    }
+
+    /**
+     * 设置压缩结果的输出文件，每次编码和评价之后都会把结果写到这个文件，见 SummaryFile
+     *
+     * @param output 输出文件名，为null时不写出
+     */
+    public void setOutput(String output) {
+        this.output = output;
+    }
+
+    /**
+     * 设置 hub 模式，度数超过 hub_degree 的顶点称为 hub：
+     * (1)SWeG 的 shingle 值和 LDME 的签名只使用 hub 的 hub_degree 个邻居样本，样本按固定的哈希值选取，
+     *    邻居相似的两个 hub 选出的样本也相似，每轮分组不再扫描 hub 的全部邻居
+     * (2)createW 使用缓存的 hub 的 WeightVector，结果与重新计算相同
+     * (3)Greedy 生成 two-hops 邻居时不经过 hub 扩展第二跳，只通过一个度数极大的顶点相连的两个超点相似度很低，而经过 hub 的 two-hops 邻居有 deg^2 个
+     * hub 本身仍然参与合并，需要在 run 之前调用
+     *
+     * @param hub_degree 度数阈值，小于等于0时不区分 hub
+     */
+    public void setHubDegree(int hub_degree) {
+        this.hub_degree = Math.max(0, hub_degree);
+        hub = null;
+        hub_rank = null;
+        hub_samples = null;
+        hub_vectors = null;
+        if (this.hub_degree == 0) return;
+        hub = new boolean[n];
+        hub_rank = new TIntIntHashMap();
+        for (int v = 0; v < n; v++) {
+            if (Gr.outdegree(v) > this.hub_degree) {
+                hub[v] = true;
+                hub_rank.put(v, hub_rank.size());
+            }
+        }
+        int count = hub_rank.size();
+        hub_samples = new int[count][];
+        hub_vectors = new WeightVector[count];
+        // 所有 hub 的邻居计数都是1，共用一个数组
+        int max_degree = 0;
+        for (int v = 0; v < n; v++) if (hub[v]) max_degree = Math.max(max_degree, Gr.outdegree(v));
+        int[] ones = new int[max_degree];
+        Arrays.fill(ones, 1);
+        long sampled = 0;
+        for (int v = 0; v < n; v++) {
+            if (!hub[v]) continue;
+            int rank = hub_rank.get(v);
+            int degree = Gr.outdegree(v);
+            int[] neighbours = Arrays.copyOf(Gr.successorArray(v), degree);
+            hub_vectors[rank] = new WeightVector(neighbours, ones, degree);
+            // (哈希值, 邻居) 打包排序，取哈希值最小的 hub_degree 个
+            long[] keys = new long[degree];
+            for (int i = 0; i < degree; i++) keys[i] = ((long) saltedHash(neighbours[i], HUB_SAMPLE_SALT) << 32) | neighbours[i];
+            Arrays.sort(keys);
+            int[] sample = new int[this.hub_degree];
+            for (int i = 0; i < sample.length; i++) sample[i] = (int) keys[i];
+            Arrays.sort(sample);
+            hub_samples[rank] = sample;
+            sampled += degree - sample.length;
         }
+        System.out.println("Hubs (degree > " + this.hub_degree + "): " + count + ", " + sampled + " arcs skipped when grouping");
+    }
+
+    // 选取 hub 邻居样本的哈希函数参数，与随机数种子无关，所有 hub 使用同一个哈希函数
+    static final long HUB_SAMPLE_SALT = 0x5DEECE66DL;
+
+    /**
+     * 顶点v是否是 hub
+     */
+    protected boolean isHub(int v) {
+        return hub != null && hub[v];
+    }
+
+    /**
+     * 分组阶段计算 shingle 值和签名时使用的顶点v的邻居：hub 是固定的邻居样本，其他顶点是全部邻居
+     * 返回的数组可能属于图对象，只能读取前 groupingDegree(graph, v) 个元素
+     */
+    protected int[] groupingNeighbours(ImmutableGraph graph, int v) {
+        return isHub(v) ? hub_samples[hub_rank.get(v)] : graph.successorArray(v);
+    }
+
+    /**
+     * groupingNeighbours 返回的邻居个数
+     */
+    protected int groupingDegree(ImmutableGraph graph, int v) {
+        return isHub(v) ? hub_degree : graph.outdegree(v);
+    }
+
+    /**
+     * 设置合并阶段的近似候选查找：大小不小于 sketch_group_size 的组使用 SketchIndex 找出少量最相似的候选，
+     * 只对这些候选精确计算 Jaccard Similarity，组内每次查找不再是线性的，但可能错过真正最相似的超点
+     *
+     * @param sketch_group_size 使用近似查找的最小组大小，小于等于0时不使用
+     */
+    public void setSketchSearch(int sketch_group_size) {
+        this.sketch_group_size = Math.max(0, sketch_group_size);
+    }
+
+    /**
+     * 设置统计指标的输出文件，每个阶段结束之后都会把到目前为止的所有指标重新写到这个文件，见 Metrics.writeJSON
+     *
+     * @param metrics_output 输出文件名，为null时不写出
+     */
+    public void setMetricsOutput(String metrics_output) {
+        this.metrics_output = metrics_output;
+    }
+
+    /**
+     * 把 [0, length) 切成若干段，多线程时在线程池上并行执行，单线程时直接执行
+     *
+     * @param length 区间长度
+     * @param task   每一段要执行的任务
+     */
+    protected void parallelRange(int length, Parallel.RangeTask task) {
+        Parallel.forRange(pool, pool == null ? 1 : num_threads * 4, length, task);
     }
 
     /**
      * 更新超点，即合并两个超点，需要把第二个超点的所有顶点都合并到第一个超点里面(这里做了一个特殊处理，把编号大的合并到小的编号里面)
+     * 通过尾指针直接拼接两个链表，S 只需要把超点b挂到超点a下面，整个操作是 O(1) 的
      *
      * @param super_node_a
      * @param super_node_b
@@ -61,12 +364,30 @@ public class Summary {
     protected void updateSuperNode(int super_node_a, int super_node_b) {
         int a = Math.min(super_node_a, super_node_b);
         int b = Math.max(super_node_a, super_node_b);
-        int[] A_nodes = recoverSuperNode(a);
-        int[] B_nodes = recoverSuperNode(b);
-        J[A_nodes[A_nodes.length - 1]] = I[b];
-        I[b] = -1;
-        for (int i = 0; i < A_nodes.length; i++) S[A_nodes[i]] = I[a];
-        for (int i = 0; i < B_nodes.length; i++) S[B_nodes[i]] = I[a];
+        J.set(tail.get(a), I.get(b));
+        tail.set(a, tail.get(b));
+        I.set(b, -1);
+        S.set(b, a);
+        size.set(a, size.get(a) + size.get(b));
+    }
+
+    /**
+     * 查找顶点所在的超点编号，查找的同时进行路径压缩，使得后续查找接近 O(1)
+     * 没有合并同时修改 S 时可以被多个线程同时调用，S 也可以同时被其他线程读取(如后台写检查点)：
+     * 路径压缩只会把 S[x] 改成 x 的某个祖先，互相竞争的写入、读到的旧值都仍然是祖先，表示的划分不变，返回的根也相同
+     *
+     * @param v 顶点编号
+     * @return
+     */
+    protected int find(int v) {
+        int root = v;
+        while (S.get(root) != root) root = S.get(root);
+        while (S.get(v) != root) {
+            int next = S.get(v);
+            S.set(v, root);
+            v = next;
+        }
+        return root;
     }
 
     /**
@@ -76,13 +397,7 @@ public class Summary {
      * @return
      */
     protected int superNodeLength(int super_node_id) {
-        int counter = 0;
-        int node = I[super_node_id];
-        while (node != -1) {
-            counter++;
-            node = J[node];
-        }
-        return counter;
+        return I.get(super_node_id) == -1 ? 0 : size.get(super_node_id);
     }
 
     /**
@@ -96,38 +411,52 @@ public class Summary {
         int length = superNodeLength(super_node_id);
         int[] nodes = new int[length];
         int counter = 0;
-        int node = I[super_node_id];
+        int node = I.get(super_node_id);
         while (node != -1) {
             nodes[counter++] = node;
-            node = J[node];
+            node = J.get(node);
         }
         return nodes;
     }
 
     /**
-     * 为一个小组Q内的所有超点建立HashMap<Integer, Integer>
-     * 建立HashMap的目的是方便后续计算Jaccard Similarity 和 Saving
-     * 一个超点的HashMap里面存储了 <u, num> 其中顶点 u 和该超点存在 num 条边相连
+     * 在合并小组的视角下查找顶点所在的超点编号，组内已经并入其他超点的超点会被映射到合并后的超点
+     *
+     * @param v     顶点编号
+     * @param group 当前正在合并的小组，为null时等价于 find(v)
+     * @return
+     */
+    protected int find(int v, MergeGroup group) {
+        int root = find(v);
+        if (group == null || group_of.get(root) != group.id) return root;
+        return group.Q[group.localFind(pos_in_group.get(root))];
+    }
+
+    /**
+     * 在合并小组的视角下计算超点包含多少个顶点
+     *
+     * @param super_node_id 超点编号
+     * @param group         当前正在合并的小组，为null时等价于 superNodeLength(super_node_id)
+     * @return
+     */
+    protected int superNodeLength(int super_node_id, MergeGroup group) {
+        if (group == null || group_of.get(super_node_id) != group.id) return superNodeLength(super_node_id);
+        return group.local_size[pos_in_group.get(super_node_id)];
+    }
+
+    /**
+     * 为一个小组Q内的所有超点建立WeightVector
+     * 建立WeightVector的目的是方便后续计算Jaccard Similarity 和 Saving
+     * 一个超点的WeightVector里面存储了 <u, num> 其中顶点 u 和该超点存在 num 条边相连
      *
      * @param Q          组内的所有超点编号
      * @param group_size 组的大小
-     * @return
+     * @return 下标 i 对应超点 Q[i] 的 WeightVector
      */
-    protected HashMap<Integer, HashMap<Integer, Integer>> createW(int[] Q, int group_size) {
-        HashMap<Integer, HashMap<Integer, Integer>> w_All = new HashMap<Integer, HashMap<Integer, Integer>>();
+    protected WeightVector[] createW(int[] Q, int group_size) {
+        WeightVector[] w_All = new WeightVector[group_size];
         for (int i = 0; i < group_size; i++) {
-            HashMap<Integer, Integer> w_Single = new HashMap<Integer, Integer>();
-            int[] Nodes = recoverSuperNode(Q[i]);
-            for (int j = 0; j < Nodes.length; j++) {
-                int[] Neigh = Gr.successorArray(Nodes[j]);
-                for (int k = 0; k < Neigh.length; k++) {
-                    if (w_Single.containsKey(Neigh[k]))
-                        w_Single.put(Neigh[k], w_Single.get(Neigh[k]) + 1);
-                    else
-                        w_Single.put(Neigh[k], 1);
-                }
-            }
-            w_All.put(i, w_Single);
+            w_All[i] = createW(Q[i]);
         }
         return w_All;
     }
@@ -138,284 +467,444 @@ public class Summary {
      * @param super_node_id 超点编号
      * @return
      */
-    protected HashMap<Integer, Integer> createW(int super_node_id) {
-        HashMap<Integer, Integer> w_Single = new HashMap<Integer, Integer>();
-        int[] Nodes = recoverSuperNode(super_node_id);
-        for (int j = 0; j < Nodes.length; j++) {
-            int[] Neigh = Gr.successorArray(Nodes[j]);
-            for (int k = 0; k < Neigh.length; k++) {
-                if (w_Single.containsKey(Neigh[k]))
-                    w_Single.put(Neigh[k], w_Single.get(Neigh[k]) + 1);
-                else
-                    w_Single.put(Neigh[k], 1);
+    protected WeightVector createW(int super_node_id) {
+        // 先把所有成员顶点的邻居拼接到一个数组里，再排序并统计每个邻居出现的次数
+        // hub 成员直接使用缓存的 WeightVector，最后归并进来
+        ImmutableGraph graph = graph();
+        int length = 0;
+        WeightVector hubs = null;
+        for (int v = I.get(super_node_id); v != -1; v = J.get(v)) {
+            if (isHub(v)) {
+                WeightVector w_v = hub_vectors[hub_rank.get(v)];
+                hubs = hubs == null ? w_v : updateW(hubs, w_v);
+            } else {
+                length += graph.outdegree(v);
             }
         }
-        return w_Single;
+        if (hubs != null && length == 0) return hubs;
+        int[] neighbours = new int[length];
+        int counter = 0;
+        for (int v = I.get(super_node_id); v != -1; v = J.get(v)) {
+            if (isHub(v)) continue;
+            int[] Neigh = graph.successorArray(v);
+            int degree = graph.outdegree(v);
+            System.arraycopy(Neigh, 0, neighbours, counter, degree);
+            counter += degree;
+        }
+        WeightVector w = WeightVector.fromNeighbours(neighbours, length);
+        return hubs == null ? w : updateW(w, hubs);
     }
 
     /**
-     * 更新超点的HashMap
-     * 当合并两个超点时，其中一个超点的所有顶点并入到另一个超点里面，这时需要更新两个超点的HashMap，保证后续计算的准确性
+     * 更新超点的WeightVector
+     * 当合并两个超点时，其中一个超点的所有顶点并入到另一个超点里面，这时需要更新两个超点的WeightVector，保证后续计算的准确性
+     * 两个向量都按顶点编号有序，因此只需要一次归并
      *
-     * @param w_A 超点A的HashMap
-     * @param w_B 超点B的HashMap
+     * @param w_A 超点A的WeightVector
+     * @param w_B 超点B的WeightVector
      * @return
      */
-    protected HashMap<Integer, Integer> updateW(HashMap<Integer, Integer> w_A, HashMap<Integer, Integer> w_B) {
-        HashMap<Integer, Integer> result = new HashMap<Integer, Integer>();
-        for (Integer key : w_A.keySet()) {
-            if (w_B.containsKey(key))
-                result.put(key, w_A.get(key) + w_B.get(key));
-            else
-                result.put(key, w_A.get(key));
+    protected WeightVector updateW(WeightVector w_A, WeightVector w_B) {
+        int[] ids = new int[w_A.size + w_B.size];
+        int[] counts = new int[w_A.size + w_B.size];
+        int i = 0, j = 0, k = 0;
+        while (i < w_A.size && j < w_B.size) {
+            int a = w_A.ids[i], b = w_B.ids[j];
+            if (a == b) {
+                ids[k] = a;
+                counts[k++] = w_A.counts[i++] + w_B.counts[j++];
+            } else if (a < b) {
+                ids[k] = a;
+                counts[k++] = w_A.counts[i++];
+            } else {
+                ids[k] = b;
+                counts[k++] = w_B.counts[j++];
+            }
         }
-        for (Integer key : w_B.keySet()) {
-            if (w_A.containsKey(key))
-                continue;
-            result.put(key, w_B.get(key));
+        while (i < w_A.size) {
+            ids[k] = w_A.ids[i];
+            counts[k++] = w_A.counts[i++];
+        }
+        while (j < w_B.size) {
+            ids[k] = w_B.ids[j];
+            counts[k++] = w_B.counts[j++];
         }
-        return result;
+        return new WeightVector(ids, counts, k);
+    }
+
+    /**
+     * 顶点编号的一个非负哈希值，不同的 salt 相当于不同的随机重新编号
+     */
+    static int saltedHash(int v, long salt) {
+        long x = (v + salt) * 0x9E3779B97F4A7C15L;
+        x = (x ^ (x >>> 32)) * 0xD6E8FEB86659FD93L;
+        return (int) (x ^ (x >>> 32)) >>> 1;
     }
 
     /**
      * 计算两个超点之间的Jaccard Similarity
      *
-     * @param w_A 超点A的HashMap
-     * @param w_B 超点B的HashMap
+     * @param w_A 超点A的WeightVector
+     * @param w_B 超点B的WeightVector
      * @return
      */
-    protected double computeJacSim(HashMap<Integer, Integer> w_A, HashMap<Integer, Integer> w_B) {
+    protected double computeJacSim(WeightVector w_A, WeightVector w_B) {
         int down = 0;
         int up = 0;
-        for (Integer key : w_A.keySet()) {
-            if (w_B.containsKey(key)) {
-                if (w_A.get(key) <= w_B.get(key)) {
-                    up = up + w_A.get(key);
-                    down = down + w_B.get(key);
+        int i = 0, j = 0;
+        while (i < w_A.size && j < w_B.size) {
+            int a = w_A.ids[i], b = w_B.ids[j];
+            if (a == b) {
+                int c_A = w_A.counts[i++], c_B = w_B.counts[j++];
+                if (c_A <= c_B) {
+                    up = up + c_A;
+                    down = down + c_B;
                 } else {
-                    down = down + w_A.get(key);
-                    up = up + w_B.get(key);
+                    down = down + c_A;
+                    up = up + c_B;
                 }
-            } else
-                down = down + w_A.get(key);
-        }
-        for (Integer key : w_B.keySet()) {
-            if (!(w_A.containsKey(key))) {
-                down = down + w_B.get(key);
+            } else if (a < b) {
+                down = down + w_A.counts[i++];
+            } else {
+                down = down + w_B.counts[j++];
             }
         }
+        while (i < w_A.size) down = down + w_A.counts[i++];
+        while (j < w_B.size) down = down + w_B.counts[j++];
         return (up * 1.0) / (down * 1.0);
     }
 
     /**
-     * 测试函数，目前存在问题
-     *
-     * @param w_A         超点A的HashMap
-     * @param w_B         超点B的HashMap
-     * @param supernode_A 超点A的编号
-     * @param supernode_B 超点B的编号
-     * @return
+     * Jaccard Similarity 的上界 min(total_A, total_B) / max(total_A, total_B)：
+     * computeJacSim 的分子不超过较小的边数，分母不小于较大的边数，浮点除法是单调的，所以计算结果同样不超过这个上界
      */
-    protected double computeSaving_test(HashMap<Integer, Integer> w_A, HashMap<Integer, Integer> w_B, int supernode_A, int supernode_B) {
-        int[] nodes_A = recoverSuperNode(supernode_A);
-        int[] nodes_B = recoverSuperNode(supernode_B);
-        double cost_A = 0, cost_B = 0, cost_AUnionB = 0;
-        // 这个HashMap用于存储与合并后的超点存在边相连的超点大小
-        HashMap<Integer, Integer> candidate_size = new HashMap<Integer, Integer>();
-        // 这个HashMap用于存储与超点A存在边相连的所有边数量
-        HashMap<Integer, Integer> candidate_spA = new HashMap<Integer, Integer>();
-        // 这个HashMap用于存储与超点B存在边相连的所有边数量
-        HashMap<Integer, Integer> candidate_spB = new HashMap<Integer, Integer>();
-
-        // 遍历w_A得到与超点A存在边相连的顶点u以及边数量num
-        for (Integer key : w_A.keySet()) {
-            if (!candidate_size.containsKey(S[key])) {
-                int[] nodes = recoverSuperNode(S[key]);
-                candidate_size.put(S[key], nodes.length);
-                candidate_spA.put(S[key], w_A.get(key));
-            } else {
-                candidate_spA.put(S[key], candidate_spA.get(S[key]) + w_A.get(key));
-            }
-        }
+    static double jaccardBound(WeightVector w_A, WeightVector w_B) {
+        return w_A.total <= w_B.total ? (w_A.total * 1.0) / (w_B.total * 1.0) : (w_B.total * 1.0) / (w_A.total * 1.0);
+    }
 
-        // 遍历w_B得到与超点B存在边相连的顶点u以及边数量num
-        for (Integer key : w_B.keySet()) {
-            if (!candidate_size.containsKey(S[key])) {
-                int[] nodes = recoverSuperNode(S[key]);
-                candidate_size.put(S[key], nodes.length);
-                candidate_spB.put(S[key], w_B.get(key));
-            } else if (candidate_spB.containsKey(S[key])) {
-                candidate_spB.put(S[key], candidate_spB.get(S[key]) + w_B.get(key));
-            } else {
-                candidate_spB.put(S[key], w_B.get(key));
-            }
+    /**
+     * computeSaving 使用的临时哈希表，按超点编号记录与超点A、B相连的边数量，用完之后只清理被访问过的槽位
+     * 每个线程各自持有一份，避免每次计算都重新分配HashMap；大小只与两个 WeightVector 的长度有关，与顶点数无关
+     * 开放寻址、线性探测，keys 中 -1 表示空槽；touched 按超点第一次出现的顺序记录槽位，与按编号直接索引的数组遍历顺序相同
+     */
+    static final class SavingBuffer {
+        int[] keys;
+        int[] sp_A;
+        int[] sp_B;
+        int mask;
+        int[] touched;
+        int num_touched;
+
+        SavingBuffer() {
+            allocate(64);
+            touched = new int[16];
         }
 
-        // 开始计算超点A，B以及合并后超点的代价 cost_A, cost_B 和 cost_AUnionB
-        for (Integer key : candidate_spA.keySet()) {
-            if (key == supernode_A) { // in case of superloop
-                if (candidate_spA.get(key) > (nodes_A.length * 1.0 * (nodes_A.length - 1)) / 4.0) {
-                    cost_A += (nodes_A.length * 1.0 * (nodes_A.length - 1)) / 2.0 - candidate_spA.get(key) ;
-                } else {
-                    cost_A += candidate_spA.get(key);
-                }
-                continue;
-            }
-            if (candidate_spA.get(key) > (nodes_A.length * 1.0 * candidate_size.get(key)) / 2.0)
-                cost_A += (candidate_size.get(key) * nodes_A.length) - candidate_spA.get(key) + 1;
-            else
-                cost_A += candidate_spA.get(key);
+        private void allocate(int capacity) {
+            keys = new int[capacity];
+            Arrays.fill(keys, -1);
+            sp_A = new int[capacity];
+            sp_B = new int[capacity];
+            mask = capacity - 1;
+        }
 
-            if (key == supernode_B || key == supernode_A)
-                continue;
+        /**
+         * 保证表中能放下 count 个超点(装载因子不超过1/2)，只能在表为空时调用
+         */
+        void reserve(int count) {
+            if (2L * count > keys.length) allocate(Integer.highestOneBit(Math.max(count, 1) * 2 - 1) * 2);
+        }
 
-            if (candidate_spB.containsKey(key)) {
-                if ((candidate_spA.get(key) + candidate_spB.get(key)) > ((nodes_A.length + nodes_B.length) * 1.0 * candidate_size.get(key)) / 2.0)
-                    cost_AUnionB += (candidate_size.get(key) * (nodes_A.length + nodes_B.length)) - candidate_spA.get(key) - candidate_spB.get(key) + 1;
-                else
-                    cost_AUnionB += candidate_spA.get(key) + candidate_spB.get(key);
-            } else {
-                if ((candidate_spA.get(key) > ((nodes_A.length + nodes_B.length) * 1.0 * candidate_size.get(key)) / 2.0))
-                    cost_AUnionB += (candidate_size.get(key) * (nodes_A.length + nodes_B.length)) - candidate_spA.get(key) + 1;
-                else
-                    cost_AUnionB += candidate_spA.get(key);
-            }
+        private static int hash(int super_node_id) {
+            return super_node_id * 0x9E3779B9 ^ (super_node_id * 0x9E3779B9) >>> 16;
         }
-        for (Integer key : candidate_spB.keySet()) {
-            if (key == supernode_B) { // in case of superloop
-                if (candidate_spB.get(key) > (nodes_B.length * 1.0 * (nodes_B.length - 1)) / 4.0) {
-                    cost_B += (nodes_B.length * 1.0 * (nodes_B.length - 1)) / 2.0 - candidate_spB.get(key);
-                } else {
-                    cost_B += candidate_spB.get(key);
+
+        /**
+         * 超点所在的槽位，第一次出现时插入并记录到 touched
+         */
+        int slot(int super_node_id) {
+            int slot = hash(super_node_id) & mask;
+            while (keys[slot] != super_node_id) {
+                if (keys[slot] == -1) {
+                    keys[slot] = super_node_id;
+                    if (num_touched == touched.length) touched = Arrays.copyOf(touched, touched.length * 2);
+                    touched[num_touched++] = slot;
+                    return slot;
                 }
-                continue;
+                slot = (slot + 1) & mask;
             }
+            return slot;
+        }
 
-            if (candidate_spB.get(key) > (nodes_B.length * 1.0 * candidate_size.get(key)) / 2.0)
-                cost_B += (candidate_size.get(key) * nodes_B.length) - candidate_spB.get(key) + 1;
-            else
-                cost_B += candidate_spB.get(key);
-
-            if (candidate_spA.containsKey(key) || key == supernode_A || key == supernode_B) {
-                continue;
-            } else {
-                if ((candidate_spB.get(key) > ((nodes_A.length + nodes_B.length) * 1.0 * candidate_size.get(key)) / 2))
-                    cost_AUnionB += (candidate_size.get(key) * (nodes_A.length + nodes_B.length)) - candidate_spB.get(key) + 1;
-                else
-                    cost_AUnionB += candidate_spB.get(key);
+        /**
+         * 超点所在的槽位，不在表中时返回-1
+         */
+        int find(int super_node_id) {
+            int slot = hash(super_node_id) & mask;
+            while (keys[slot] != super_node_id) {
+                if (keys[slot] == -1) return -1;
+                slot = (slot + 1) & mask;
             }
+            return slot;
         }
 
-        int aUnionBEdges = 0;
-        // 超点A存在自环边
-        if (candidate_spA.containsKey(supernode_A))
-            aUnionBEdges += candidate_spA.get(supernode_A);
-        // 超点A和B存在超边
-        if (candidate_spA.containsKey(supernode_B))
-            aUnionBEdges += candidate_spA.get(supernode_B);
-        // 超点B存在自环边
-        if (candidate_spB.containsKey(supernode_B))
-            aUnionBEdges += candidate_spB.get(supernode_B);
-        if (aUnionBEdges > 0) {
-            if (aUnionBEdges > ((nodes_A.length + nodes_B.length) * 1.0 * (nodes_A.length + nodes_B.length - 1.0)) / 4.0) {
-                cost_AUnionB += ((nodes_A.length + nodes_B.length) * 1.0 * (nodes_A.length + nodes_B.length - 1.0)) / 2.0 - aUnionBEdges;
+        int edgesA(int super_node_id) {
+            int slot = find(super_node_id);
+            return slot == -1 ? 0 : sp_A[slot];
+        }
 
-            } else {
-                cost_AUnionB += aUnionBEdges;
-            }
+        int edgesB(int super_node_id) {
+            int slot = find(super_node_id);
+            return slot == -1 ? 0 : sp_B[slot];
         }
 
-        return 1 - (cost_AUnionB) / (cost_A + cost_B);
+        void clear() {
+            for (int i = 0; i < num_touched; i++) {
+                int slot = touched[i];
+                keys[slot] = -1;
+                sp_A[slot] = 0;
+                sp_B[slot] = 0;
+            }
+            num_touched = 0;
+        }
     }
 
+    private final ThreadLocal<SavingBuffer> saving_buffer = ThreadLocal.withInitial(SavingBuffer::new);
+
     /**
      * 计算两个超点之间的Saving，即合并能带来的收益
      *
-     * @param w_A         超点A的HashMap
-     * @param w_B         超点B的HashMap
+     * @param w_A         超点A的WeightVector
+     * @param w_B         超点B的WeightVector
+     * @param supernode_A 超点A的编号
+     * @param supernode_B 超点B的编号
+     * @return
+     */
+    protected double computeSaving(WeightVector w_A, WeightVector w_B, int supernode_A, int supernode_B) {
+        return computeSaving(w_A, w_B, supernode_A, supernode_B, null);
+    }
+
+    /**
+     * 在合并小组的视角下计算两个超点之间的Saving，组内已经发生但还没有写回的合并通过 group 体现
+     *
+     * @param w_A         超点A的WeightVector
+     * @param w_B         超点B的WeightVector
      * @param supernode_A 超点A的编号
      * @param supernode_B 超点B的编号
+     * @param group       超点A和B所在的小组，为null时直接使用全局的超点信息
      * @return
      */
-    protected double computeSaving(HashMap<Integer, Integer> w_A, HashMap<Integer, Integer> w_B, int supernode_A, int supernode_B) {
-        int num_A = recoverSuperNode(supernode_A).length;
-        int num_B = recoverSuperNode(supernode_B).length;
+    protected double computeSaving(WeightVector w_A, WeightVector w_B, int supernode_A, int supernode_B, MergeGroup group) {
+        metrics.saving_computations.increment();
+        int num_A = superNodeLength(supernode_A, group);
+        int num_B = superNodeLength(supernode_B, group);
         double cost_A = 0, cost_B = 0, cost_AUnionB = 0;
-        // 这个HashMap用于存储与合并后的超点存在边相连的超点大小
-        HashMap<Integer, Integer> candidate_size = new HashMap<Integer, Integer>();
-        // 这个HashMap用于存储与超点A存在边相连的所有边数量
-        HashMap<Integer, Integer> candidate_spA = new HashMap<Integer, Integer>();
-        // 这个HashMap用于存储与超点B存在边相连的所有边数量
-        HashMap<Integer, Integer> candidate_spB = new HashMap<Integer, Integer>();
-
-        // 遍历w_A得到与超点A存在边相连的顶点u以及边数量num
-        for (Integer key : w_A.keySet()) {
-            if (!candidate_size.containsKey(S[key])) {
-                int[] nodes = recoverSuperNode(S[key]);
-                candidate_size.put(S[key], nodes.length);
-                candidate_spA.put(S[key], w_A.get(key));
-            } else {
-                candidate_spA.put(S[key], candidate_spA.get(S[key]) + w_A.get(key));
-            }
+        SavingBuffer buffer = saving_buffer.get();
+        buffer.reserve(w_A.size + w_B.size);
+        int[] keys = buffer.keys;
+        int[] sp_A = buffer.sp_A;
+        int[] sp_B = buffer.sp_B;
+
+        // 遍历w_A和w_B得到与超点A、B存在边相连的超点以及边数量
+        for (int i = 0; i < w_A.size; i++) {
+            sp_A[buffer.slot(find(w_A.ids[i], group))] += w_A.counts[i];
         }
-
-        // 遍历w_B得到与超点B存在边相连的顶点u以及边数量num
-        for (Integer key : w_B.keySet()) {
-            if (!candidate_size.containsKey(S[key])) {
-                int[] nodes = recoverSuperNode(S[key]);
-                candidate_size.put(S[key], nodes.length);
-                candidate_spB.put(S[key], w_B.get(key));
-            } else if (candidate_spB.containsKey(S[key])) {
-                candidate_spB.put(S[key], candidate_spB.get(S[key]) + w_B.get(key));
-            } else {
-                candidate_spB.put(S[key], w_B.get(key));
-            }
+        for (int i = 0; i < w_B.size; i++) {
+            sp_B[buffer.slot(find(w_B.ids[i], group))] += w_B.counts[i];
         }
 
         // 开始计算超点A，B以及合并后超点的代价 cost_A, cost_B 和 cost_AUnionB
-        for (Integer key : candidate_spA.keySet()) {
-            int E = candidate_spA.get(key);
-            double compare = key == supernode_A ? ((num_A * 1.0 * (num_A - 1)) / 2.0) : (num_A * 1.0 * candidate_size.get(key));
-            cost_A += (E <= compare / 2.0) ? (E) : (1 + compare - E);
-
+        for (int t = 0; t < buffer.num_touched; t++) {
+            int slot = buffer.touched[t];
+            int key = keys[slot];
+            int E_A = sp_A[slot];
+            int E_B = sp_B[slot];
+            int size = key == supernode_A ? num_A : (key == supernode_B ? num_B : superNodeLength(key, group));
+            if (E_A > 0) {
+                double compare = key == supernode_A ? ((num_A * 1.0 * (num_A - 1)) / 2.0) : (num_A * 1.0 * size);
+                cost_A += (E_A <= compare / 2.0) ? (E_A) : (1 + compare - E_A);
+            }
+            if (E_B > 0) {
+                double compare = key == supernode_B ? ((num_B * 1.0 * (num_B - 1)) / 2.0) : (num_B * 1.0 * size);
+                cost_B += (E_B <= compare / 2.0) ? (E_B) : (1 + compare - E_B);
+            }
             if (key == supernode_B || key == supernode_A)
                 continue;
 
-            E += candidate_spB.containsKey(key) ? candidate_spB.get(key) : 0;
-            compare = key == supernode_A ? (((num_A + num_B) * 1.0 * (num_A + num_B - 1)) / 2.0) : ((num_A + num_B) * 1.0 * candidate_size.get(key));
+            int E = E_A + E_B;
+            double compare = (num_A + num_B) * 1.0 * size;
             cost_AUnionB += (E <= compare / 2.0) ? (E) : (1 + compare - E);
         }
-        for (Integer key : candidate_spB.keySet()) {
-            int E = candidate_spB.get(key);
-            double compare = key == supernode_B ? ((num_B * 1.0 * (num_B - 1)) / 2.0) : (num_B * 1.0 * candidate_size.get(key));
-            cost_B += (E <= compare / 2.0) ? (E) : (1 + compare - E);
-
-            if (key == supernode_B || key == supernode_A)
-                continue;
-
-            if (!candidate_spA.containsKey(key)) {
-                compare = key == supernode_B ? (((num_A + num_B) * 1.0 * (num_A + num_B - 1)) / 2.0) : ((num_A + num_B) * 1.0 * candidate_size.get(key));
-                cost_AUnionB += (E <= compare / 2.0) ? (E) : (1 + compare - E);
-            }
-        }
 
         int E = 0;
         // 超点A存在自环边
-        if (candidate_spA.containsKey(supernode_A))
-            E += candidate_spA.get(supernode_A);
+        E += buffer.edgesA(supernode_A);
         // 超点A和B存在超边
-        if (candidate_spA.containsKey(supernode_B))
-            E += candidate_spA.get(supernode_B);
+        E += buffer.edgesA(supernode_B);
         // 超点B存在自环边
-        if (candidate_spB.containsKey(supernode_B))
-            E += candidate_spB.get(supernode_B);
+        E += buffer.edgesB(supernode_B);
         if (E > 0) {
             double compare = ((num_A + num_B) * 1.0 * (num_A + num_B - 1)) / 2.0;
             cost_AUnionB += (E <= compare / 2.0) ? (E) : (1 + compare - E);
         }
+        buffer.clear();
         return 1 - (cost_AUnionB) / (cost_A + cost_B);
     }
 
+    /**
+     * 合并一个小组内的超点，SWeG和LDME算法在组内都采用Random方式进行合并：
+     * 每次随机选一个超点A，找到组内与A的Jaccard Similarity最大的超点，Saving不低于阈值时合并，否则把A移出小组
+     * 合并只记录在 group 里，由调用者负责写回
+     *
+     * @param group     要合并的小组
+     * @param threshold 合并阶段的阈值，低于阈值的顶点对不合并
+     * @param rand      该小组使用的随机数
+     */
+    protected void mergeGroup(MergeGroup group, double threshold, Random rand) {
+        int[] Q = group.Q;
+        WeightVector[] hm = createW(Q, Q.length);
+        int initial_size = hm.length;
+        // 组内还没有被移除的超点数量
+        int live = initial_size;
+        // 组内计算 Jaccard Similarity 的次数、计算 Saving 的次数以及合并的次数，处理完之后一起计入 metrics
+        long jaccard = 0, attempts = 0, successes = 0;
+        // 组足够大时使用草图索引查找候选，草图的哈希种子取自该小组的随机数
+        SketchIndex index = sketch_group_size > 0 && initial_size >= sketch_group_size ? new SketchIndex(hm, rand.nextLong()) : null;
+        int[] shortlist = index == null ? null : new int[SketchIndex.SHORTLIST];
+        while (live > 1) {
+            // 从组内随机找到一个超点A
+            int A = rand.nextInt(initial_size);
+            if (hm[A] == null)
+                continue;
+
+            double max = 0;
+            int idx = -1;
+            if (index != null) {
+                // 只对草图索引给出的候选计算 Jaccard Similarity
+                int count = index.candidates(A, hm, shortlist);
+                for (int c = 0; c < count; c++) {
+                    int j = shortlist[c];
+                    double jaccard_similarity = computeJacSim(hm[A], hm[j]);
+                    jaccard++;
+                    if (jaccard_similarity > max || (jaccard_similarity == max && idx != -1 && j < idx)) {
+                        max = jaccard_similarity;
+                        idx = j;
+                    }
+                }
+            } else {
+                // 遍历组内其他顶点，找到与A的Jaccard Similarity最大的那个顶点
+                for (int j = 0; j < initial_size; j++) {
+                    if (hm[j] == null)
+                        continue;
+                    if (j == A) continue;
+                    // 上界不超过当前的最大值时不可能被选中，度数相差悬殊(如 hub 与普通顶点)的超点对不需要逐项比较
+                    if (jaccardBound(hm[A], hm[j]) <= max) continue;
+                    double jaccard_similarity = computeJacSim(hm[A], hm[j]);
+                    jaccard++;
+                    if (jaccard_similarity > max) {
+                        max = jaccard_similarity;
+                        idx = j;
+                    }
+                }
+            }
+            if (idx == -1) {
+                hm[A] = null;
+                live--;
+                continue;
+            }
+
+            // 这里做了一个交换，目的是把编号较大的顶点合并到编号较小的顶点里面
+            if (Q[A] > Q[idx]) {
+                int t = A;
+                A = idx;
+                idx = t;
+            }
+
+            // 计算两个顶点之间的合并收益
+            double savings = computeSaving(hm[A], hm[idx], Q[A], Q[idx], group);
+            attempts++;
+            if (savings >= threshold) {
+                hm[A] = updateW(hm[A], hm[idx]);
+                hm[idx] = null;
+                live--;
+                group.union(A, idx);
+                if (index != null) index.update(A, hm[A]);
+                successes++;
+            } else {
+                hm[A] = null;
+                live--;
+            }
+        }
+        metrics.recordGroupMerges(initial_size, jaccard, attempts, successes);
+    }
+
+    /**
+     * 依次合并分组阶段得到的所有小组
+     * 每个小组的合并只在组内可见，所有小组都处理完之后再按小组编号的顺序写回，因此结果与线程数和调度顺序无关
+     * num_threads 大于1时，各个小组在 ForkJoinPool 上并行处理，按小组大小从大到小调度
+     *
+     * @param groups    所有需要合并的小组(大小至少为2)，下标即小组编号
+     * @param threshold 合并阶段的阈值，低于阈值的顶点对不合并
+     */
+    protected void mergeGroups(List<int[]> groups, double threshold) {
+        if (group_of == null) {
+            group_of = vertexArray(n);
+            pos_in_group = vertexArray(n);
+        }
+        for (int v = 0; v < n; v++) group_of.set(v, -1);
+        // 每个小组的随机数由本轮的种子和小组编号决定
+        long phase_seed = random.nextLong();
+
+        MergeGroup[] prepared = new MergeGroup[groups.size()];
+        for (int g = 0; g < groups.size(); g++) prepared[g] = prepareGroup(g, groups.get(g));
+
+        if (pool == null) {
+            // 单线程时同样只在组内可见，前面小组的合并不会影响后面小组的 find 和 computeSaving
+            for (int g = 0; g < prepared.length; g++) {
+                mergeGroup(prepared[g], threshold, new Random(groupSeed(phase_seed, g)));
+            }
+            for (MergeGroup group : prepared) applyMerges(group);
+            return;
+        }
+
+        // 先把 S 压平，并行阶段的 find 不再写 S，各线程不会写同一个缓存行(即使写也是安全的，见 find)
+        for (int v = 0; v < n; v++) find(v);
+        Integer[] order = new Integer[groups.size()];
+        for (int g = 0; g < groups.size(); g++) order[g] = g;
+        Arrays.sort(order, (o1, o2) -> Integer.compare(prepared[o2].Q.length, prepared[o1].Q.length));
+
+        AtomicInteger cursor = new AtomicInteger(0);
+        List<ForkJoinTask<?>> workers = new ArrayList<>();
+        for (int t = 0; t < num_threads; t++) {
+            workers.add(pool.submit(() -> {
+                for (int i = cursor.getAndIncrement(); i < order.length; i = cursor.getAndIncrement()) {
+                    int g = order[i];
+                    mergeGroup(prepared[g], threshold, new Random(groupSeed(phase_seed, g)));
+                }
+            }));
+        }
+        for (ForkJoinTask<?> worker : workers) worker.join();
+        for (MergeGroup group : prepared) applyMerges(group);
+    }
+
+    private MergeGroup prepareGroup(int g, int[] Q) {
+        for (int i = 0; i < Q.length; i++) {
+            group_of.set(Q[i], g);
+            pos_in_group.set(Q[i], i);
+        }
+        return new MergeGroup(g, Q, size);
+    }
+
+    private void applyMerges(MergeGroup group) {
+        for (int i = 0; i < group.merges.size(); i += 2) {
+            updateSuperNode(group.merges.get(i), group.merges.get(i + 1));
+        }
+    }
+
+    private static long groupSeed(long phase_seed, int g) {
+        return phase_seed + 0x9E3779B97F4A7C15L * (g + 1);
+    }
+
     /**
      * 顶点初始化的阶段，Greedy算法需要进行重载
      */
@@ -449,18 +938,20 @@ public class Summary {
         long startTime = System.currentTimeMillis();
         supernode_sizes = new int[n];
         sn_to_n = new HashMap<>();
-        P = new ArrayList<>();
+        P_0 = new TIntArrayList();
+        P_1 = new TIntArrayList();
         Cp_0 = new TIntArrayList();
         Cp_1 = new TIntArrayList();
         Cm_0 = new TIntArrayList();
         Cm_1 = new TIntArrayList();
         int supernode_count = 0;
-        int[] S_copy = Arrays.copyOf(S, S.length);
+        int[] S_copy = new int[n];
+        for (int i = 0; i < n; i++) S_copy[i] = S.get(i);
 
         // 对超点进行编码
         for (int i = 0; i < n; i++) {
             // 如果存在编号为i的超点
-            if (I[i] != -1) {
+            if (I.get(i) != -1) {
                 // 获取超点i包含的所有顶点
                 int[] nodes_inside = recoverSuperNode(i);
                 TIntArrayList nodes_inside_list = new TIntArrayList();
@@ -490,8 +981,9 @@ public class Summary {
             for (int a = 0; a < in_A.size(); a++) {
                 int node = in_A.get(a);
                 int[] neighbours = Gr.successorArray(node);
+                int degree = Gr.outdegree(node);
 
-                for (int i = 0; i < neighbours.length; i++) {
+                for (int i = 0; i < degree; i++) {
                     // B = S_copy[neighbours[i]]
                     edges_count[S_copy[neighbours[i]]]++;
                     // if this B has not already been processed
@@ -527,7 +1019,8 @@ public class Summary {
                     }
 
                 } else { // add a superEdge between A and B to P and add the difference to C-
-                    P.add(new Pair(A, B));
+                    P_0.add(A);
+                    P_1.add(B);
                     // get all nodes in superNode B
                     TIntArrayList in_B = sn_to_n.get(B);
                     // process each possible pair <a,b> where a in superNode A and b in superNode B
@@ -551,102 +1044,117 @@ public class Summary {
 
     /**
      * 编码阶段，在LDME算法中同样改进了这个地方，比上面的方法速度更快：
-     * (1)先对超点进行编码，即判断有多少个超点，并且记录每个超点对应哪些顶点集合
-     * (2)接着对超边进行编码
+     * (1)先对超点进行编码，即判断有多少个超点，并且记录每个超点对应哪些顶点集合(按顶点编号升序)
+     * (2)接着对超边进行编码：每条边 <u, v> 打包成 (u << 32 | v)，所属的超点对 <A, B> 打包成 (A << 32 | B)，
+     *    用并行的基数排序按超点对排序(稳定排序，同一超点对内的边仍按 <u, v> 升序)，
+     *    之后逐个超点对处理，需要C-时把A、B的有序成员列表与有序的边做归并，整个过程不为单条边分配对象
      */
     public double encodePhase_new(){
         System.out.println("# Encode Phase");
         long startTime = System.currentTimeMillis();
         supernode_sizes = new int[n];
         sn_to_n = new HashMap<>();
-        P = new ArrayList<>();
+        P_0 = new TIntArrayList();
+        P_1 = new TIntArrayList();
         Cp_0 = new TIntArrayList();
         Cp_1 = new TIntArrayList();
         Cm_0 = new TIntArrayList();
         Cm_1 = new TIntArrayList();
-        int edges_compressed = 0;
         int supernode_count = 0;
-        int[] S_copy = Arrays.copyOf(S, S.length);
+        int[] S_copy = new int[n];
 
         for (int i = 0; i < n; i++) {
-            if (I[i] != -1) {
+            if (I.get(i) != -1) {
                 int[] nodes_inside = recoverSuperNode(i);
-                TIntArrayList nodes_inside_list = new TIntArrayList();
+                Arrays.sort(nodes_inside);
                 supernode_sizes[supernode_count] = nodes_inside.length;
                 for (int j = 0; j < nodes_inside.length; j++) {
-                    nodes_inside_list.add(nodes_inside[j]);
                     S_copy[nodes_inside[j]] = supernode_count;
                 }
-                sn_to_n.put(supernode_count, nodes_inside_list);
+                sn_to_n.put(supernode_count, TIntArrayList.wrap(nodes_inside));
                 supernode_count++;
             }
         }
 
-        LinkedList<FourTuple> edges_encoding = new LinkedList<FourTuple>();
-        for (int node = 0; node < n; node++) {
-            for(int neighbour : Gr.successorArray(node)) {
-                if (S_copy[node] <= S_copy[neighbour]) {
-                    edges_encoding.add(new FourTuple(S_copy[node], S_copy[neighbour], node, neighbour));
+        // 先并行统计每一段需要编码的边数，再按段的顺序写入，保证边按 <u, v> 升序排列
+        int parts = pool == null ? 1 : num_threads * 4;
+        long[] part_edges = new long[parts + 1];
+        Parallel.forRange(pool, parts, n, (part, start, end) -> {
+            ImmutableGraph graph = graph();
+            long count = 0;
+            for (int node = start; node < end; node++) {
+                int[] neighbours = graph.successorArray(node);
+                int degree = graph.outdegree(node);
+                for (int i = 0; i < degree; i++) {
+                    if (S_copy[node] <= S_copy[neighbours[i]]) count++;
                 }
             }
-        }
-        Collections.sort(edges_encoding);
-
-        int prev_A = edges_encoding.get(0).A;
-        int prev_B = edges_encoding.get(0).B;
-        HashSet<Pair<Integer, Integer>> edges_set = new HashSet<Pair<Integer, Integer>>();
-        Iterator<FourTuple> iter = edges_encoding.iterator();
-        while (!edges_encoding.isEmpty()) {
-            FourTuple e_encoding = edges_encoding.pop();
-            int A = e_encoding.A;
-            int B = e_encoding.B;
-
-            // 移动到新的顶点对，即已经得到前一个顶点对<prev_A, prev_B>的所有边信息，可以开始encode顶点对 <prev_A, prev_B>的超边信息
-            if ((A != prev_A || B != prev_B)) { // we've moved onto a different pair of supernodes A and B
-
-                if (prev_A <= prev_B) {
-                    double edges_compare_cond = 0;
-                    if (prev_A == prev_B) { edges_compare_cond = supernode_sizes[prev_A] * (supernode_sizes[prev_A] - 1) / 4.0; }
-                    else                  { edges_compare_cond = (supernode_sizes[prev_A] * supernode_sizes[prev_B]) / 2.0;     }
-
-                    // 不形成超边
-                    if (edges_set.size() <= edges_compare_cond) {
-                        if (prev_A != prev_B) edges_compressed += edges_set.size();
-                        // 每条边加入到C+集合
-                        for (Pair<Integer, Integer> edge : edges_set) {
-                            Cp_0.add(edge.getValue0());
-                            Cp_1.add(edge.getValue1());
-                        }
+            part_edges[part + 1] = count;
+        });
+        for (int part = 0; part < parts; part++) part_edges[part + 1] += part_edges[part];
+        if (part_edges[parts] > Integer.MAX_VALUE - 8)
+            throw new IllegalStateException("too many edges to encode: " + part_edges[parts]);
+        int num_edges = (int) part_edges[parts];
+        long[] blocks = new long[num_edges];
+        long[] edges = new long[num_edges];
+        Parallel.forRange(pool, parts, n, (part, start, end) -> {
+            ImmutableGraph graph = graph();
+            int pos = (int) part_edges[part];
+            for (int node = start; node < end; node++) {
+                int[] neighbours = graph.successorArray(node);
+                int degree = graph.outdegree(node);
+                for (int i = 0; i < degree; i++) {
+                    int neighbour = neighbours[i];
+                    if (S_copy[node] <= S_copy[neighbour]) {
+                        blocks[pos] = ((long) S_copy[node] << 32) | S_copy[neighbour];
+                        edges[pos++] = ((long) node << 32) | neighbour;
                     }
-                    // 行成超边
-                    else {
-                        if (prev_A != prev_B) edges_compressed += supernode_sizes[prev_A] * supernode_sizes[prev_B] - edges_set.size() + 1;
-
-                        // 加入超边 <prev_A, prev_B>
-                        P.add(new Pair(prev_A, prev_B));
-
-                        TIntArrayList in_A = sn_to_n.get(prev_A);
-                        TIntArrayList in_B = sn_to_n.get(prev_B);
-                        for (int a = 0; a < in_A.size(); a++) {
-                            for (int b = 0; b < in_B.size(); b++) {
-                                Pair<Integer, Integer> edge = new Pair(in_A.get(a), in_B.get(b));
-                                // 每条边加入到C-集合
-                                if (!(edges_set.contains(edge))) {
-                                    Cm_0.add(in_A.get(a));
-                                    Cm_1.add(in_B.get(b));
-                                }
-                            } // for b
-                        } // for a
-                    } // else
-                } // if
-
-                edges_set = new HashSet<Pair<Integer, Integer>>();
-            } // if
-
-            edges_set.add(new Pair(e_encoding.u, e_encoding.v));
-            prev_A = A;
-            prev_B = B;
-        } // for edges encoding
+                }
+            }
+        });
+        LongRadixSort.sort(blocks, edges, pool, num_threads);
+
+        // 逐个处理每个超点对 <A, B> 的边，即 blocks 中相同的一段
+        int block_start = 0;
+        while (block_start < num_edges) {
+            int block_end = block_start + 1;
+            while (block_end < num_edges && blocks[block_end] == blocks[block_start]) block_end++;
+            int A = (int) (blocks[block_start] >>> 32);
+            int B = (int) blocks[block_start];
+            int edges_count = block_end - block_start;
+
+            double edges_compare_cond = 0;
+            if (A == B) { edges_compare_cond = supernode_sizes[A] * (supernode_sizes[A] - 1L) / 4.0; }
+            else        { edges_compare_cond = ((long) supernode_sizes[A] * supernode_sizes[B]) / 2.0; }
+
+            // 不形成超边，每条边加入到C+集合
+            if (edges_count <= edges_compare_cond) {
+                for (int e = block_start; e < block_end; e++) {
+                    Cp_0.add((int) (edges[e] >>> 32));
+                    Cp_1.add((int) edges[e]);
+                }
+            }
+            // 形成超边，加入超边 <A, B>，A×B 中不存在的边加入到C-集合
+            else {
+                P_0.add(A);
+                P_1.add(B);
+                TIntArrayList in_A = sn_to_n.get(A);
+                TIntArrayList in_B = sn_to_n.get(B);
+                int e = block_start;
+                for (int a = 0; a < in_A.size(); a++) {
+                    for (int b = 0; b < in_B.size(); b++) {
+                        long edge = ((long) in_A.get(a) << 32) | in_B.get(b);
+                        if (e < block_end && edges[e] == edge) {
+                            e++;
+                        } else {
+                            Cm_0.add(in_A.get(a));
+                            Cm_1.add(in_B.get(b));
+                        }
+                    } // for b
+                } // for a
+            } // else
+            block_start = block_end;
+        }
         return (System.currentTimeMillis() - startTime) / 1000.0;
     }
 
@@ -655,119 +1163,452 @@ public class Summary {
      * @Compression: 0.xxxxx
      * @nodes: xxxxx ===> xxxxx
      * @edges: xxxxx ===> xxxxx(P:xxx, C+:xxx, C-:xxx)
+     * 有损压缩时还会输出实际的误差，见 evaluateError
      */
     public void evaluatePhase() {
         System.out.println("# Evaluate Phase");
         int sp_num = 0;
         for (int i = 0; i < n; i++) {
-            if (I[i] != -1) {
+            if (I.get(i) != -1) {
                 sp_num++;
             }
         }
-        System.out.println(String.format("@Compression: %.5f", (1 - (P.size() + Cp_0.size() + Cm_0.size() * 1.0) / (Gr.numArcs() * 1.0))));
+        compression = 1 - (P_0.size() + Cp_0.size() + Cm_0.size() * 1.0) / (Gr.numArcs() * 1.0);
+        supernode_count = sp_num;
+        summary_edges = (long) P_0.size() + Cp_0.size() + Cm_0.size();
+        System.out.println(String.format("@Compression: %.5f", compression));
         System.out.println("@nodes: " + Gr.numNodes() + "\t ===> \t" + sp_num);
-        System.out.println("@edges: " + Gr.numArcs() + "\t ===> \t" + (P.size() + Cp_0.size() + Cm_0.size()) + String.format("(P:%d, C+:%d, C-:%d)", P.size(), Cp_0.size(), Cm_0.size()));
+        System.out.println("@edges: " + Gr.numArcs() + "\t ===> \t" + (P_0.size() + Cp_0.size() + Cm_0.size()) + String.format("(P:%d, C+:%d, C-:%d)", P_0.size(), Cp_0.size(), Cm_0.size()));
+        if (error_bound > 0) evaluateError();
     }
 
     /**
-     * 用于 Lossy Summarization 的情形，目前没有使用到
+     * 执行一个阶段并输出它的耗时，耗时累计到 phase_seconds 中，阶段内的统计指标记录到 metrics 中
      *
-     * @param error_bound 对边进行丢弃的阈值参数
+     * @param phase 阶段的名字，如 divide、merge、encode
+     * @param body  阶段方法，返回耗时(秒)
      */
-    public void dropPhase(double error_bound) {
-        System.out.println("# Drop Phase");
-
-        double[] cv = new double[n];
-        for (int i = 0; i < n; i++) {
-            cv[i] = error_bound * Gr.outdegree(i);
+    protected void reportPhase(String phase, DoubleSupplier body) {
+        metrics.begin(phase);
+        double seconds = body.getAsDouble();
+        metrics.end(seconds);
+        System.out.println(String.format("@Time: %5f seconds", seconds));
+        recordPhase(phase, seconds);
+        if (metrics_output != null) {
+            try {
+                metrics.writeJSON(metrics_output);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
         }
+    }
 
-        TIntArrayList updated_Cp_0 = new TIntArrayList();
-        TIntArrayList updated_Cp_1 = new TIntArrayList();
-        for (int i = 0; i < Cp_0.size(); i++) {
-            int edge_u = Cp_0.get(i);
-            int edge_v = Cp_1.get(i);
+    /**
+     * 只累计一个阶段的耗时，不输出
+     */
+    protected void recordPhase(String phase, double seconds) {
+        phase_seconds.merge(phase, seconds, Double::sum);
+    }
 
-            if (cv[edge_u] >= 1 && cv[edge_v] >= 1) {
-                cv[edge_u] = cv[edge_u] - 1;
-                cv[edge_v] = cv[edge_v] - 1;
-            } else {
-                updated_Cp_0.add(edge_u);
-                updated_Cp_1.add(edge_v);
-            }
+    /**
+     * 存储阶段，把编码阶段的结果写到 output 文件中，之后可以通过 SummaryFile.load 直接打开
+     */
+    public double storePhase() {
+        System.out.println("# Store Phase");
+        long startTime = System.currentTimeMillis();
+        try {
+            SummaryFile.store(this, output);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        Cp_0 = updated_Cp_0;
-        Cp_1 = updated_Cp_1;
+        return (System.currentTimeMillis() - startTime) / 1000.0;
+    }
 
-        TIntArrayList updated_Cm_0 = new TIntArrayList();
-        TIntArrayList updated_Cm_1 = new TIntArrayList();
-        for (int i = 0; i < Cm_0.size(); i++) {
-            int edge_u = Cm_0.get(i);
-            int edge_v = Cm_1.get(i);
+    /**
+     * LDME 的签名长度，其他算法为0，写入检查点用于检查恢复时的参数是否相同
+     */
+    protected int signatureLength() {
+        return 0;
+    }
 
-            if (cv[edge_u] >= 1 && cv[edge_v] >= 1) {
-                cv[edge_u] = cv[edge_u] - 1;
-                cv[edge_v] = cv[edge_v] - 1;
-            } else {
-                updated_Cm_0.add(edge_u);
-                updated_Cm_1.add(edge_v);
+    /**
+     * 开始迭代之前调用：记录运行参数，设置了 resume 且检查点存在时从检查点恢复
+     * 检查点那一轮的编码和存储没有完成时 resume_output 为真，调用者需要先对恢复的状态调用 outputPhases
+     *
+     * @param iteration              迭代次数
+     * @param print_iteration_offset 每执行多少次迭代就进行一次 encode 和 evaluate
+     * @return 已经完成的迭代次数，没有恢复时为0
+     */
+    protected int resumeCheckpoint(int iteration, int print_iteration_offset) {
+        run_iterations = iteration;
+        run_print_offset = print_iteration_offset;
+        resume_output = false;
+        if (!resume || checkpoint == null || !new File(checkpoint).exists()) return 0;
+        try {
+            int completed = Checkpoint.load(this, checkpoint);
+            System.out.println("Resumed from " + checkpoint + " after iteration " + completed + (resume_output ? ", its output was not finished" : ""));
+            return completed;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 第 iteration 轮合并结束之后调用，按间隔在后台写出检查点
+     * 随机数生成器的状态在当前线程里立即保存，S、I、J 由后台线程直接读取，所以下一次合并之前要调用 awaitCheckpoint
+     * 这一轮需要输出时，检查点先标记为没有完成输出，由 outputPhases 在存储之后标记
+     *
+     * @param iteration 已经完成的迭代次数
+     * @param threshold 这一轮合并使用的阈值
+     */
+    protected void saveCheckpoint(int iteration, double threshold) {
+        if (checkpoint == null || iteration % checkpoint_interval != 0) return;
+        awaitCheckpoint();
+        byte[] random_state = Checkpoint.randomState(random);
+        if (checkpoint_writer == null) {
+            checkpoint_writer = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "checkpoint-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        String filename = checkpoint;
+        boolean encoded = iteration % run_print_offset != 0;
+        pending_checkpoint = checkpoint_writer.submit(() -> {
+            long startTime = System.currentTimeMillis();
+            try {
+                Checkpoint.store(this, iteration, threshold, encoded, random_state, filename);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
+            System.out.println("Checkpoint of iteration " + iteration + " written in " + ((System.currentTimeMillis() - startTime) / 1000.0) + " seconds");
+        });
+    }
+
+    /**
+     * 输出阶段：编码、有损压缩时的删除、评价和存储，完成之后在第 iteration 轮的检查点里标记输出已经完成
+     *
+     * @param iteration 当前的迭代次数
+     * @param encode    编码阶段方法，如 encodePhase、encodePhase_new
+     */
+    protected void outputPhases(int iteration, DoubleSupplier encode) {
+        reportPhase("encode", encode);
+        if (error_bound > 0) reportPhase("drop", () -> dropPhase(error_bound));
+        evaluatePhase();
+        if (output != null) reportPhase("store", this::storePhase);
+        if (checkpoint == null || iteration % checkpoint_interval != 0) return;
+        awaitCheckpoint();
+        try {
+            Checkpoint.markEncoded(checkpoint);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        Cm_0 = updated_Cm_0;
-        Cm_1 = updated_Cm_1;
+    }
 
-        Collections.sort(P, new EdgeCompare(supernode_sizes));
-        ArrayList<Pair<Integer, Integer>> updated_P = new ArrayList<Pair<Integer, Integer>>();
-        for (Pair<Integer, Integer> edge : P) {
-            int A = edge.getValue0();
-            int B = edge.getValue1();
+    /**
+     * 等待正在后台写出的检查点完成，在修改 S、I、J 的合并阶段之前以及 run 结束时调用
+     */
+    protected void awaitCheckpoint() {
+        if (pending_checkpoint == null) return;
+        try {
+            pending_checkpoint.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            pending_checkpoint = null;
+        }
+    }
 
-            if (A == B) {
-                updated_P.add(edge);
-                continue;
-            }
+    /**
+     * 设置有损压缩的误差上限：编码之后执行 dropPhase，重构出的每个顶点v的邻居集合与原图最多相差 error_bound * deg(v) 个顶点
+     *
+     * @param error_bound 每个顶点允许的误差占度数的比例，小于等于0时为无损压缩
+     */
+    public void setErrorBound(double error_bound) {
+        this.error_bound = Math.max(0, error_bound);
+    }
 
-            int size_B = supernode_sizes[B];
-            boolean cond_A = true;
+    /**
+     * 有损压缩，在编码结果上删除一部分超边和 C+、C-，必须在 encodePhase 或 encodePhase_new 之后调用
+     * 每个顶点v有 floor(error_bound * deg(v)) 的误差预算，按下面两步使用：
+     * (1)超边按 |A|*|B| 从小到大依次尝试，删除超边 <A, B> 使A中的顶点a失去它在B中的 |B|-cm(a) 个真实邻居(cm(a)是a在这条超边上的C-数量)，
+     * B中的顶点同理，所有顶点的预算都足够时删除超边以及它的 C-，A=B 的超边不删除
+     * (2)C+ 和 C- 中的每个无序顶点对 {u, v}(同一个超点内部的对会以两个方向各出现一次)删除之后u和v各产生1个误差，
+     * 按轮并行处理：每个顶点在自己的预算内接受关联的、按 <u, v> 排序靠前的顶点对，两端都接受的顶点对被删除，
+     * 再用剩下的预算进行下一轮，直到没有新的删除，每个顶点的误差都不会超过预算，结果与线程数无关
+     *
+     * @param error_bound 每个顶点允许的误差占度数的比例
+     */
+    public double dropPhase(double error_bound) {
+        System.out.println("# Drop Phase");
+        long startTime = System.currentTimeMillis();
+        int parts = pool == null ? 1 : num_threads * 4;
+        int supernode_count = sn_to_n.size();
+        int[] sn_of = new int[n];
+        for (int A = 0; A < supernode_count; A++) {
             TIntArrayList in_A = sn_to_n.get(A);
+            for (int i = 0; i < in_A.size(); i++) sn_of[in_A.get(i)] = A;
+        }
+        int[] budget = new int[n];
+        parallelRange(n, (part, start, end) -> {
+            ImmutableGraph graph = graph();
+            for (int v = start; v < end; v++) budget[v] = (int) (error_bound * graph.outdegree(v));
+        });
+
+        // (1) 超边，先把每条 A!=B 的超边的 C- 按 (超边, 顶点) 排序，得到每个顶点在这条超边上的 C- 数量
+        int num_p = P_0.size(), num_cp = Cp_0.size(), num_cm = Cm_0.size();
+        // 超边按 <A, B> 排序，C- 所属的超边通过二分查找得到
+        long[] p_keys = new long[num_p];
+        int[] p_index = new int[num_p];
+        for (int k = 0; k < num_p; k++) {
+            p_keys[k] = ((long) P_0.get(k) << 32) | P_1.get(k);
+            p_index[k] = k;
+        }
+        LongRadixSort.sort(p_keys, p_index, pool, num_threads);
+        int[] cm_superedge = new int[num_cm];
+        int[] cm_start = new int[num_p + 1];
+        for (int e = 0; e < num_cm; e++) {
+            int A = sn_of[Cm_0.get(e)], B = sn_of[Cm_1.get(e)];
+            int found = A == B ? -1 : Arrays.binarySearch(p_keys, ((long) Math.min(A, B) << 32) | Math.max(A, B));
+            cm_superedge[e] = found < 0 ? -1 : p_index[found];
+            if (cm_superedge[e] != -1) cm_start[cm_superedge[e] + 1] += 2;
+        }
+        for (int k = 0; k < num_p; k++) cm_start[k + 1] += cm_start[k];
+        long[] cm_keys = new long[cm_start[num_p]];
+        int[] cm_entries = new int[cm_start[num_p]];
+        int pos = 0;
+        for (int e = 0; e < num_cm; e++) {
+            int k = cm_superedge[e];
+            if (k == -1) continue;
+            cm_keys[pos] = ((long) k << 32) | Cm_0.get(e);
+            cm_entries[pos++] = e;
+            cm_keys[pos] = ((long) k << 32) | Cm_1.get(e);
+            cm_entries[pos++] = e;
+        }
+        LongRadixSort.sort(cm_keys, cm_entries, pool, num_threads);
 
-            for (int i = 0; i < in_A.size(); i++) {
-                if (cv[in_A.get(i)] < size_B) {
-                    cond_A = false;
-                    break;
-                }
-            }
-            if (!cond_A) {
-                updated_P.add(edge);
-                continue;
+        long[] order_keys = new long[num_p];
+        int[] order = new int[num_p];
+        for (int k = 0; k < num_p; k++) {
+            order_keys[k] = (long) supernode_sizes[P_0.get(k)] * supernode_sizes[P_1.get(k)];
+            order[k] = k;
+        }
+        LongRadixSort.sort(order_keys, order, pool, num_threads);
+        // 每个超点中预算最少的顶点，先用它快速排除大多数删不掉的超边，不必每次都检查大超点的所有顶点
+        int[] weakest = new int[supernode_count];
+        for (int A = 0; A < supernode_count; A++) weakest[A] = weakest(sn_to_n.get(A), budget);
+        boolean[] dropped_p = new boolean[num_p];
+        boolean[] dropped_cm = new boolean[num_cm];
+        int[] cm_count = new int[n];
+        for (int k : order) {
+            int A = P_0.get(k), B = P_1.get(k);
+            if (A == B) continue;
+            for (int i = cm_start[k]; i < cm_start[k + 1]; i++) cm_count[(int) cm_keys[i]]++;
+            int a = weakest[A], b = weakest[B];
+            if (budget[a] >= supernode_sizes[B] - cm_count[a] && budget[b] >= supernode_sizes[A] - cm_count[b]
+                    && affordable(sn_to_n.get(A), supernode_sizes[B], budget, cm_count)
+                    && affordable(sn_to_n.get(B), supernode_sizes[A], budget, cm_count)) {
+                spend(sn_to_n.get(A), supernode_sizes[B], budget, cm_count);
+                spend(sn_to_n.get(B), supernode_sizes[A], budget, cm_count);
+                weakest[A] = weakest(sn_to_n.get(A), budget);
+                weakest[B] = weakest(sn_to_n.get(B), budget);
+                dropped_p[k] = true;
+                for (int i = cm_start[k]; i < cm_start[k + 1]; i++) dropped_cm[cm_entries[i]] = true;
             }
+            for (int i = cm_start[k]; i < cm_start[k + 1]; i++) cm_count[(int) cm_keys[i]] = 0;
+        }
 
-            int size_A = supernode_sizes[A];
-            boolean cond_B = true;
-            TIntArrayList in_B = sn_to_n.get(B);
+        // (2) C+ 和 C-，相同的无序顶点对合并成一项，第 e 个 C+ 的编号是 e，第 e 个 C- 的编号是 num_cp + e
+        int num_pairs = 0;
+        for (int e = 0; e < num_cm; e++) if (!dropped_cm[e]) num_pairs++;
+        num_pairs += num_cp;
+        long[] pair_keys = new long[num_pairs];
+        int[] pair_entries = new int[num_pairs];
+        pos = 0;
+        for (int e = 0; e < num_cp + num_cm; e++) {
+            if (e >= num_cp && dropped_cm[e - num_cp]) continue;
+            int u = e < num_cp ? Cp_0.get(e) : Cm_0.get(e - num_cp);
+            int v = e < num_cp ? Cp_1.get(e) : Cm_1.get(e - num_cp);
+            pair_keys[pos] = ((long) Math.min(u, v) << 32) | Math.max(u, v);
+            pair_entries[pos++] = e;
+        }
+        LongRadixSort.sort(pair_keys, pair_entries, pool, num_threads);
+        TIntArrayList item_start = new TIntArrayList();
+        for (int i = 0; i < num_pairs; i++) {
+            if (i == 0 || pair_keys[i] != pair_keys[i - 1]) item_start.add(i);
+        }
+        int num_items = item_start.size();
+        item_start.add(num_pairs);
+
+        // 每个顶点关联的项，按顶点、项的编号排序
+        int[] incident_start = new int[n + 1];
+        for (int t = 0; t < num_items; t++) {
+            long key = pair_keys[item_start.get(t)];
+            int u = (int) (key >>> 32), v = (int) key;
+            incident_start[u + 1]++;
+            if (u != v) incident_start[v + 1]++;
+        }
+        for (int v = 0; v < n; v++) incident_start[v + 1] += incident_start[v];
+        int[] incident = new int[incident_start[n]];
+        int[] fill = Arrays.copyOf(incident_start, n);
+        for (int t = 0; t < num_items; t++) {
+            long key = pair_keys[item_start.get(t)];
+            int u = (int) (key >>> 32), v = (int) key;
+            incident[fill[u]++] = t;
+            if (u != v) incident[fill[v]++] = t;
+        }
 
-            for (int i = 0; i < in_B.size(); i++) {
-                if (cv[in_B.get(i)] < size_A) {
-                    cond_B = false;
-                    break;
+        // accepted[2t] 和 accepted[2t+1] 分别表示第t项的较小端点和较大端点是否接受删除，由各自的顶点写入
+        boolean[] accepted = new boolean[2 * num_items];
+        int[] dropped_round = new int[num_items];
+        Arrays.fill(dropped_round, -1);
+        long[] part_dropped = new long[parts];
+        for (int round = 0; ; round++) {
+            parallelRange(n, (part, start, end) -> {
+                for (int v = start; v < end; v++) {
+                    int remaining = budget[v];
+                    for (int i = incident_start[v]; i < incident_start[v + 1]; i++) {
+                        int t = incident[i];
+                        if (dropped_round[t] != -1) continue;
+                        long key = pair_keys[item_start.get(t)];
+                        boolean accept = remaining > 0;
+                        if (accept) remaining--;
+                        if ((int) (key >>> 32) == v) accepted[2 * t] = accept;
+                        if ((int) key == v) accepted[2 * t + 1] = accept;
+                    }
                 }
-            }
-            if (!cond_B) {
-                updated_P.add(edge);
-                continue;
-            }
+            });
+            final int current = round;
+            Parallel.forRange(pool, parts, num_items, (part, start, end) -> {
+                long count = 0;
+                for (int t = start; t < end; t++) {
+                    if (dropped_round[t] == -1 && accepted[2 * t] && accepted[2 * t + 1]) {
+                        dropped_round[t] = current;
+                        count++;
+                    }
+                }
+                part_dropped[part] = count;
+            });
+            long dropped = 0;
+            for (long count : part_dropped) dropped += count;
+            if (dropped == 0) break;
+            parallelRange(n, (part, start, end) -> {
+                for (int v = start; v < end; v++) {
+                    for (int i = incident_start[v]; i < incident_start[v + 1]; i++) {
+                        if (dropped_round[incident[i]] == current) budget[v]--;
+                    }
+                }
+            });
+        }
 
-            // if conditions are all true, ie (A != B && all v in A && all v in B)
-            for (int i = 0; i < in_A.size(); i++) {
-                cv[in_A.get(i)] = cv[in_A.get(i)] - size_B;
-            }
-            for (int i = 0; i < in_B.size(); i++) {
-                cv[in_B.get(i)] = cv[in_B.get(i)] - size_A;
-            }
+        // 重新生成 P、C+ 和 C-
+        boolean[] dropped_entry = new boolean[num_cp + num_cm];
+        for (int e = 0; e < num_cm; e++) dropped_entry[num_cp + e] = dropped_cm[e];
+        for (int t = 0; t < num_items; t++) {
+            if (dropped_round[t] == -1) continue;
+            for (int i = item_start.get(t); i < item_start.get(t + 1); i++) dropped_entry[pair_entries[i]] = true;
+        }
+        TIntArrayList kept_P_0 = new TIntArrayList(), kept_P_1 = new TIntArrayList();
+        for (int k = 0; k < num_p; k++) {
+            if (dropped_p[k]) continue;
+            kept_P_0.add(P_0.get(k));
+            kept_P_1.add(P_1.get(k));
+        }
+        TIntArrayList kept_Cp_0 = new TIntArrayList(), kept_Cp_1 = new TIntArrayList();
+        for (int e = 0; e < num_cp; e++) {
+            if (dropped_entry[e]) continue;
+            kept_Cp_0.add(Cp_0.get(e));
+            kept_Cp_1.add(Cp_1.get(e));
+        }
+        TIntArrayList kept_Cm_0 = new TIntArrayList(), kept_Cm_1 = new TIntArrayList();
+        for (int e = 0; e < num_cm; e++) {
+            if (dropped_entry[num_cp + e]) continue;
+            kept_Cm_0.add(Cm_0.get(e));
+            kept_Cm_1.add(Cm_1.get(e));
+        }
+        System.out.println(String.format("Dropped P: %d -> %d, C+: %d -> %d, C-: %d -> %d",
+                num_p, kept_P_0.size(), num_cp, kept_Cp_0.size(), num_cm, kept_Cm_0.size()));
+        P_0 = kept_P_0;
+        P_1 = kept_P_1;
+        Cp_0 = kept_Cp_0;
+        Cp_1 = kept_Cp_1;
+        Cm_0 = kept_Cm_0;
+        Cm_1 = kept_Cm_1;
+        return (System.currentTimeMillis() - startTime) / 1000.0;
+    }
+
+    /**
+     * 超点中的每个顶点删除一条连向大小为 other_size 的超点的超边之后，误差(other_size - cm_count[v])是否都在预算之内
+     */
+    private static boolean affordable(TIntArrayList in_A, int other_size, int[] budget, int[] cm_count) {
+        for (int i = 0; i < in_A.size(); i++) {
+            int v = in_A.get(i);
+            if (budget[v] < other_size - cm_count[v]) return false;
+        }
+        return true;
+    }
 
+    private static int weakest(TIntArrayList in_A, int[] budget) {
+        int weakest = in_A.get(0);
+        for (int i = 1; i < in_A.size(); i++) {
+            if (budget[in_A.get(i)] < budget[weakest]) weakest = in_A.get(i);
+        }
+        return weakest;
+    }
+
+    private static void spend(TIntArrayList in_A, int other_size, int[] budget, int[] cm_count) {
+        for (int i = 0; i < in_A.size(); i++) {
+            int v = in_A.get(i);
+            budget[v] -= other_size - cm_count[v];
+        }
+    }
+
+    /**
+     * 有损压缩的评价：通过 SummaryIndex 重构每个顶点的邻居集合，与原图比较得到实际的误差 |N(v) △ N'(v)|，输出格式为：
+     * @Error: max x.xxxxx, mean x.xxxxx (bound x.xxxxx), over bound: x
+     * 其中 max 和 mean 是误差与度数之比的最大值和平均值(只统计度数大于0的顶点)，over bound 是误差超过预算的顶点数
+     */
+    public void evaluateError() {
+        SummaryIndex index = new SummaryIndex(this);
+        int parts = pool == null ? 1 : num_threads * 4;
+        double[] part_max = new double[parts], part_sum = new double[parts];
+        long[] part_nodes = new long[parts], part_over = new long[parts];
+        Parallel.forRange(pool, parts, n, (part, start, end) -> {
+            ImmutableGraph graph = graph();
+            for (int v = start; v < end; v++) {
+                int degree = graph.outdegree(v);
+                int[] expected = graph.successorArray(v);
+                int[] actual = index.successors(v);
+                int error = 0, i = 0, j = 0;
+                while (i < degree && j < actual.length) {
+                    if (expected[i] == actual[j]) { i++; j++; }
+                    else if (expected[i] < actual[j]) { i++; error++; }
+                    else { j++; error++; }
+                }
+                error += (degree - i) + (actual.length - j);
+                if (error > (int) (error_bound * degree)) part_over[part]++;
+                if (degree == 0) continue;
+                double ratio = error * 1.0 / degree;
+                part_max[part] = Math.max(part_max[part], ratio);
+                part_sum[part] += ratio;
+                part_nodes[part]++;
+            }
+        });
+        double sum = 0;
+        long nodes = 0, over = 0;
+        max_error = 0;
+        for (int part = 0; part < parts; part++) {
+            max_error = Math.max(max_error, part_max[part]);
+            sum += part_sum[part];
+            nodes += part_nodes[part];
+            over += part_over[part];
         }
-        P = updated_P;
-        System.out.println("Drop Compression: " + (1 - (P.size() + Cp_0.size() + Cm_0.size() * 1.0) / (Gr.numArcs() / 2 * 1.0)));
+        mean_error = nodes == 0 ? 0 : sum / nodes;
+        System.out.println(String.format("@Error: max %.5f, mean %.5f (bound %.5f), over bound: %d", max_error, mean_error, error_bound, over));
     }
 
     /**
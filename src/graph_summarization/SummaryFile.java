@@ -0,0 +1,333 @@
+package graph_summarization;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * 压缩结果(超点、超边P、C+和C-)在磁盘上的二进制格式，写出后可以通过内存映射直接打开，不需要重新运行压缩算法
+ * <p>
+ * 文件依次包含：
+ * (1)文件头，见下面的 HEADER_* 常量
+ * (2)每个顶点所在的超点编号，每个编号占 sn_width 位
+ * (3)超点记录的索引目录和顶点记录的索引目录，见 offset 方法
+ * (4)位流，先是两个索引中按块压缩的相对偏移量，然后是所有超点的记录，最后是所有顶点的记录
+ * <p>
+ * 位流中的有序列表与 webgraph 的 BV 格式类似，采用间隔编码：γ(长度)，δ(第一个元素)，之后每个元素用 γ(与前一个元素的差-1)
+ * 超点的记录是它包含的顶点列表，以及与它相连的超点列表(超边是无向的，<A, B> 同时出现在A和B的列表里)；
+ * 顶点的记录是与它相关的C+列表和C-列表，同样是对称的，即 <u, v> 同时出现在u和v的列表里
+ * 因此这个格式和编码阶段一样，假设原图是对称的(无向图)
+ */
+public class SummaryFile extends SummaryGraph {
+    static final int MAGIC = 0x4753554D; // "GSUM"
+    static final int VERSION = 2;
+    // 文件头的布局，所有字段按自身大小对齐，位置都以字节为单位
+    static final int HEADER_MAGIC = 0;
+    static final int HEADER_VERSION = 4;
+    static final int HEADER_NODES = 8;
+    static final int HEADER_SUPERNODES = 12;
+    static final int HEADER_ARCS = 16;
+    static final int HEADER_P = 24;
+    static final int HEADER_CP = 32;
+    static final int HEADER_CM = 40;
+    static final int HEADER_SN_WIDTH = 48;
+    static final int HEADER_NODE_TO_SN = 56;
+    static final int HEADER_SN_DIRECTORY = 64;
+    static final int HEADER_NODE_DIRECTORY = 72;
+    static final int HEADER_SIZE = 80;
+    // 索引中每一块包含的记录数
+    static final int BLOCK_SHIFT = 6;
+    static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+    // 索引目录中每一块的第二个 long，高6位是相对偏移量的位宽，其余是它们在文件中的位置
+    static final int WIDTH_SHIFT = 58;
+
+    private final MappedBytes bytes;
+    private final int n;
+    private final int supernode_count;
+    private final long num_arcs, num_p, num_cp, num_cm;
+    private final int sn_width;
+    private final long node_to_sn_pos, sn_directory_pos, node_directory_pos;
+
+    private SummaryFile(MappedBytes bytes) throws IOException {
+        this.bytes = bytes;
+        if (bytes.length() < HEADER_SIZE || bytes.getInt(HEADER_MAGIC) != MAGIC)
+            throw new IOException("not a summary file");
+        if (bytes.getInt(HEADER_VERSION) != VERSION)
+            throw new IOException("unsupported summary file version: " + bytes.getInt(HEADER_VERSION));
+        n = bytes.getInt(HEADER_NODES);
+        supernode_count = bytes.getInt(HEADER_SUPERNODES);
+        num_arcs = bytes.getLong(HEADER_ARCS);
+        num_p = bytes.getLong(HEADER_P);
+        num_cp = bytes.getLong(HEADER_CP);
+        num_cm = bytes.getLong(HEADER_CM);
+        sn_width = bytes.getInt(HEADER_SN_WIDTH);
+        node_to_sn_pos = bytes.getLong(HEADER_NODE_TO_SN);
+        sn_directory_pos = bytes.getLong(HEADER_SN_DIRECTORY);
+        node_directory_pos = bytes.getLong(HEADER_NODE_DIRECTORY);
+    }
+
+    /**
+     * 以内存映射的方式打开一个压缩结果文件，只读取文件头，其余部分在查询时按需读取
+     *
+     * @param filename 文件名
+     */
+    public static SummaryFile load(String filename) throws IOException {
+        return new SummaryFile(new MappedBytes(filename));
+    }
+
+    @Override
+    public int numNodes() { return n; }
+
+    @Override
+    public int numSuperNodes() { return supernode_count; }
+
+    public long numArcs() { return num_arcs; }
+
+    // 编码阶段得到的 P、C+、C- 的大小，与 evaluatePhase 的输出一致
+    public long numSuperEdges() { return num_p; }
+
+    public long numCorrectionsPlus() { return num_cp; }
+
+    public long numCorrectionsMinus() { return num_cm; }
+
+    /**
+     * 顶点v所在的超点编号
+     */
+    @Override
+    public int superNodeOf(int v) {
+        return (int) new BitReader(bytes, node_to_sn_pos * 8 + (long) v * sn_width).readBits(sn_width);
+    }
+
+    /**
+     * 超点A包含的所有顶点，按编号升序
+     */
+    @Override
+    public int[] members(int A) {
+        return readList(superNodeReader(A));
+    }
+
+    /**
+     * 与超点A之间存在超边的所有超点，按编号升序，如果A内部有超边则包含A本身
+     */
+    @Override
+    public int[] superEdges(int A) {
+        BitReader reader = superNodeReader(A);
+        skipList(reader);
+        return readList(reader);
+    }
+
+    /**
+     * C+ 中与顶点v相关的所有顶点，按编号升序
+     */
+    @Override
+    public int[] correctionsPlus(int v) {
+        return readList(nodeReader(v));
+    }
+
+    /**
+     * C- 中与顶点v相关的所有顶点，按编号升序
+     */
+    @Override
+    public int[] correctionsMinus(int v) {
+        BitReader reader = nodeReader(v);
+        skipList(reader);
+        return readList(reader);
+    }
+
+    /**
+     * 返回一个定位到超点A的记录开头的 BitReader
+     */
+    BitReader superNodeReader(int A) {
+        return offset(sn_directory_pos, A);
+    }
+
+    /**
+     * 返回一个定位到顶点v的记录开头的 BitReader
+     */
+    BitReader nodeReader(int v) {
+        return offset(node_directory_pos, v);
+    }
+
+    /**
+     * 在索引中查找第i条记录的位置，与 webgraph 的 offsets 采样类似，记录每 BLOCK_SIZE 条分为一块，
+     * 目录中每一块有两个 long：块内第一条记录的位置，以及块内每条记录相对于它的偏移量(按块内最大值的位宽紧凑存放)所在的位置
+     * 因此每条记录只需要几位的索引，查询时只读取目录中的两个 long 和一个相对偏移量
+     *
+     * @return 定位到第i条记录开头的 BitReader
+     */
+    private BitReader offset(long directory_pos, int i) {
+        long entry = directory_pos + 16L * (i >>> BLOCK_SHIFT);
+        long base = bytes.getLong(entry);
+        long packed = bytes.getLong(entry + 8);
+        int width = (int) (packed >>> WIDTH_SHIFT);
+        BitReader reader = new BitReader(bytes, (packed & ((1L << WIDTH_SHIFT) - 1)) + (long) (i & (BLOCK_SIZE - 1)) * width);
+        reader.position(base + reader.readBits(width));
+        return reader;
+    }
+
+    static int[] readList(BitReader reader) {
+        int length = (int) reader.readGamma();
+        int[] list = new int[length];
+        if (length == 0) return list;
+        list[0] = (int) reader.readDelta();
+        for (int i = 1; i < length; i++) list[i] = list[i - 1] + (int) reader.readGamma() + 1;
+        return list;
+    }
+
+    static void skipList(BitReader reader) {
+        int length = (int) reader.readGamma();
+        if (length == 0) return;
+        reader.readDelta();
+        for (int i = 1; i < length; i++) reader.readGamma();
+    }
+
+    /**
+     * 有序列表 list[from, to) 编码后的位数
+     */
+    static long listLength(int[] list, int from, int to) {
+        long bits = BitWriter.gammaLength(to - from);
+        if (to == from) return bits;
+        bits += BitWriter.deltaLength(list[from]);
+        for (int i = from + 1; i < to; i++) bits += BitWriter.gammaLength(list[i] - list[i - 1] - 1);
+        return bits;
+    }
+
+    static void writeList(BitWriter writer, int[] list, int from, int to) throws IOException {
+        writer.writeGamma(to - from);
+        if (to == from) return;
+        writer.writeDelta(list[from]);
+        for (int i = from + 1; i < to; i++) writer.writeGamma(list[i] - list[i - 1] - 1);
+    }
+
+    /**
+     * 把编码阶段的结果写到文件中，必须在 encodePhase 或 encodePhase_new 之后调用
+     *
+     * @param summary  已经完成编码的压缩对象
+     * @param filename 文件名
+     */
+    public static void store(Summary summary, String filename) throws IOException {
+        store(new SummaryIndex(summary), filename);
+    }
+
+    /**
+     * 把内存中的索引写到文件中
+     *
+     * @param index    压缩结果的索引
+     * @param filename 文件名
+     */
+    public static void store(SummaryIndex index, String filename) throws IOException {
+        int n = index.n;
+        int supernode_count = index.supernode_count;
+
+        // 先计算每条记录的位数，确定各部分的位置，再依次写出
+        long[] sn_lengths = new long[supernode_count];
+        for (int A = 0; A < supernode_count; A++) {
+            sn_lengths[A] = listLength(index.members, index.member_offsets[A], index.member_offsets[A + 1])
+                    + listLength(index.superedges, index.superedge_offsets[A], index.superedge_offsets[A + 1]);
+        }
+        long[] node_lengths = new long[n];
+        for (int v = 0; v < n; v++) {
+            node_lengths[v] = listLength(index.plus, index.plus_offsets[v], index.plus_offsets[v + 1])
+                    + listLength(index.minus, index.minus_offsets[v], index.minus_offsets[v + 1]);
+        }
+        int[] sn_widths = blockWidths(sn_lengths);
+        int[] node_widths = blockWidths(node_lengths);
+
+        int sn_width = Math.max(1, 32 - Integer.numberOfLeadingZeros(supernode_count - 1));
+        long node_to_sn_pos = HEADER_SIZE;
+        long sn_directory_pos = align8(node_to_sn_pos + ((long) n * sn_width + 7) / 8);
+        long node_directory_pos = sn_directory_pos + 16L * sn_widths.length;
+        long sn_packed_pos = (node_directory_pos + 16L * node_widths.length) * 8;
+        long node_packed_pos = sn_packed_pos + packedLength(sn_widths, supernode_count);
+        long sn_records_pos = node_packed_pos + packedLength(node_widths, n);
+        long node_records_pos = sn_records_pos;
+        for (long length : sn_lengths) node_records_pos += length;
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(n);
+            out.writeInt(supernode_count);
+            out.writeLong(index.num_arcs);
+            out.writeLong(index.num_p);
+            out.writeLong(index.num_cp);
+            out.writeLong(index.num_cm);
+            out.writeInt(sn_width);
+            out.writeInt(0);
+            out.writeLong(node_to_sn_pos);
+            out.writeLong(sn_directory_pos);
+            out.writeLong(node_directory_pos);
+
+            BitWriter writer = new BitWriter(out);
+            for (int v = 0; v < n; v++) writer.writeBits(index.node_to_sn[v], sn_width);
+            writer.padTo((sn_directory_pos - HEADER_SIZE) * 8);
+            writeDirectory(writer, sn_lengths, sn_widths, sn_records_pos, sn_packed_pos);
+            writeDirectory(writer, node_lengths, node_widths, node_records_pos, node_packed_pos);
+            writePacked(writer, sn_lengths, sn_widths);
+            writePacked(writer, node_lengths, node_widths);
+            for (int A = 0; A < supernode_count; A++) {
+                writeList(writer, index.members, index.member_offsets[A], index.member_offsets[A + 1]);
+                writeList(writer, index.superedges, index.superedge_offsets[A], index.superedge_offsets[A + 1]);
+            }
+            for (int v = 0; v < n; v++) {
+                writeList(writer, index.plus, index.plus_offsets[v], index.plus_offsets[v + 1]);
+                writeList(writer, index.minus, index.minus_offsets[v], index.minus_offsets[v + 1]);
+            }
+            long expected = node_records_pos - HEADER_SIZE * 8L;
+            for (long length : node_lengths) expected += length;
+            if (writer.writtenBits() != expected)
+                throw new IllegalStateException("unexpected bit stream length: " + writer.writtenBits() + " != " + expected);
+            writer.flush();
+        }
+    }
+
+    /**
+     * 每一块内相对偏移量需要的位宽，即块内最后一条记录相对于第一条记录的偏移量的位数
+     */
+    private static int[] blockWidths(long[] lengths) {
+        int[] widths = new int[(lengths.length + BLOCK_SIZE - 1) >>> BLOCK_SHIFT];
+        for (int b = 0; b < widths.length; b++) {
+            long relative = 0;
+            int end = Math.min(lengths.length, (b + 1) << BLOCK_SHIFT);
+            for (int i = b << BLOCK_SHIFT; i < end - 1; i++) relative += lengths[i];
+            widths[b] = 64 - Long.numberOfLeadingZeros(relative);
+            if (widths[b] >= WIDTH_SHIFT) throw new IllegalStateException("records too large to index: " + relative);
+        }
+        return widths;
+    }
+
+    private static long packedLength(int[] widths, int count) {
+        long bits = 0;
+        for (int b = 0; b < widths.length; b++) bits += (long) widths[b] * Math.min(BLOCK_SIZE, count - (b << BLOCK_SHIFT));
+        return bits;
+    }
+
+    /**
+     * 写出索引目录，位置都是相对于整个文件的，而 writer 从文件头之后开始计数
+     */
+    private static void writeDirectory(BitWriter writer, long[] lengths, int[] widths, long records_pos, long packed_pos) throws IOException {
+        for (int b = 0; b < widths.length; b++) {
+            writer.writeBits(records_pos, 64);
+            writer.writeBits(((long) widths[b] << WIDTH_SHIFT) | packed_pos, 64);
+            int end = Math.min(lengths.length, (b + 1) << BLOCK_SHIFT);
+            for (int i = b << BLOCK_SHIFT; i < end; i++) records_pos += lengths[i];
+            packed_pos += (long) widths[b] * (end - (b << BLOCK_SHIFT));
+        }
+    }
+
+    private static void writePacked(BitWriter writer, long[] lengths, int[] widths) throws IOException {
+        for (int b = 0; b < widths.length; b++) {
+            long relative = 0;
+            int end = Math.min(lengths.length, (b + 1) << BLOCK_SHIFT);
+            for (int i = b << BLOCK_SHIFT; i < end; i++) {
+                writer.writeBits(relative, widths[b]);
+                relative += lengths[i];
+            }
+        }
+    }
+
+    private static long align8(long pos) {
+        return (pos + 7) & ~7L;
+    }
+}
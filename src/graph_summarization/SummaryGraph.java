@@ -0,0 +1,91 @@
+package graph_summarization;
+
+import java.util.Arrays;
+
+/**
+ * 在压缩结果上直接回答邻居查询，不需要解压整个图：
+ * 顶点v的邻居 = (与v所在超点有超边的超点中的所有顶点 ∪ C+ 中与v相关的顶点) - C- 中与v相关的顶点
+ * 每次查询只读取v所在的超点、与它有超边的超点以及v自己的C+/C-列表
+ * 和编码阶段一样，假设原图是对称的(无向图)
+ * <p>
+ * SummaryIndex 在内存中保存这些结构，SummaryFile 则直接从内存映射的文件中读取
+ */
+public abstract class SummaryGraph {
+
+    public abstract int numNodes();
+
+    public abstract int numSuperNodes();
+
+    /**
+     * 顶点v所在的超点编号
+     */
+    public abstract int superNodeOf(int v);
+
+    /**
+     * 超点A包含的所有顶点，按编号升序
+     */
+    public abstract int[] members(int A);
+
+    /**
+     * 与超点A之间存在超边的所有超点，按编号升序，如果A内部有超边则包含A本身
+     */
+    public abstract int[] superEdges(int A);
+
+    /**
+     * C+ 中与顶点v相关的所有顶点，按编号升序
+     */
+    public abstract int[] correctionsPlus(int v);
+
+    /**
+     * C- 中与顶点v相关的所有顶点，按编号升序
+     */
+    public abstract int[] correctionsMinus(int v);
+
+    /**
+     * 顶点v的所有邻居，按编号升序，与 ImmutableGraph.successorArray 的前 outdegree(v) 个元素相同
+     */
+    public int[] successors(int v) {
+        int[] superedges = superEdges(superNodeOf(v));
+        int[] plus = correctionsPlus(v);
+        int[][] expanded = new int[superedges.length][];
+        int length = plus.length;
+        for (int i = 0; i < superedges.length; i++) {
+            expanded[i] = members(superedges[i]);
+            length += expanded[i].length;
+        }
+        // 不同超点的顶点互不相同，C+ 中的顶点也不会出现在有超边的超点中，所以直接拼接后排序即可
+        int[] candidates = new int[length];
+        int pos = 0;
+        for (int[] list : expanded) {
+            System.arraycopy(list, 0, candidates, pos, list.length);
+            pos += list.length;
+        }
+        System.arraycopy(plus, 0, candidates, pos, plus.length);
+        Arrays.sort(candidates);
+        return subtract(candidates, correctionsMinus(v));
+    }
+
+    /**
+     * 判断边 <u, v> 是否存在
+     */
+    public boolean hasEdge(int u, int v) {
+        if (Arrays.binarySearch(correctionsMinus(u), v) >= 0) return false;
+        if (Arrays.binarySearch(correctionsPlus(u), v) >= 0) return true;
+        return Arrays.binarySearch(superEdges(superNodeOf(u)), superNodeOf(v)) >= 0;
+    }
+
+    /**
+     * 有序数组 a 去掉有序数组 b 中的元素
+     */
+    static int[] subtract(int[] a, int[] b) {
+        if (b.length == 0) return a;
+        int[] result = new int[a.length];
+        int length = 0, j = 0;
+        for (int x : a) {
+            while (j < b.length && b[j] < x) j++;
+            if (j < b.length && b[j] == x) continue;
+            result[length++] = x;
+        }
+        return Arrays.copyOf(result, length);
+    }
+}
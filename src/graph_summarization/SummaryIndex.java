@@ -0,0 +1,205 @@
+package graph_summarization;
+
+import gnu.trove.list.array.TIntArrayList;
+
+import java.util.Arrays;
+
+/**
+ * 压缩结果在内存中的索引，所有列表都以 CSR 的形式存放：第i个列表是 targets[offsets[i], offsets[i+1])
+ * 超点A的顶点、超边分别按超点编号索引，C+/C- 按顶点编号索引，并且都是对称的、按编号升序、没有重复
+ * 可以由编码阶段的结果构造，也可以从 SummaryFile 读入
+ */
+public class SummaryIndex extends SummaryGraph {
+    int n;
+    int supernode_count;
+    // 原图的边数以及编码阶段得到的 P、C+、C- 的大小
+    long num_arcs, num_p, num_cp, num_cm;
+    // 每个顶点所在的超点编号
+    int[] node_to_sn;
+    int[] member_offsets, members;
+    int[] superedge_offsets, superedges;
+    int[] plus_offsets, plus;
+    int[] minus_offsets, minus;
+
+    /**
+     * 由编码阶段的结果构造，必须在 encodePhase 或 encodePhase_new 之后调用
+     */
+    public SummaryIndex(Summary summary) {
+        n = summary.n;
+        supernode_count = summary.sn_to_n.size();
+        num_arcs = summary.Gr.numArcs();
+        num_p = summary.P_0.size();
+        num_cp = summary.Cp_0.size();
+        num_cm = summary.Cm_0.size();
+
+        node_to_sn = new int[n];
+        member_offsets = new int[supernode_count + 1];
+        members = new int[n];
+        for (int A = 0; A < supernode_count; A++) {
+            TIntArrayList in_A = summary.sn_to_n.get(A);
+            int start = member_offsets[A];
+            for (int i = 0; i < in_A.size(); i++) {
+                members[start + i] = in_A.get(i);
+                node_to_sn[in_A.get(i)] = A;
+            }
+            // encodePhase 得到的顶点列表不一定有序
+            Arrays.sort(members, start, start + in_A.size());
+            member_offsets[A + 1] = start + in_A.size();
+        }
+
+        int[][] lists = symmetricLists(summary.P_0, summary.P_1, supernode_count);
+        superedge_offsets = lists[0];
+        superedges = lists[1];
+        lists = symmetricLists(summary.Cp_0, summary.Cp_1, n);
+        plus_offsets = lists[0];
+        plus = lists[1];
+        lists = symmetricLists(summary.Cm_0, summary.Cm_1, n);
+        minus_offsets = lists[0];
+        minus = lists[1];
+    }
+
+    /**
+     * 把压缩结果文件整个读入内存
+     */
+    public SummaryIndex(SummaryFile file) {
+        n = file.numNodes();
+        supernode_count = file.numSuperNodes();
+        num_arcs = file.numArcs();
+        num_p = file.numSuperEdges();
+        num_cp = file.numCorrectionsPlus();
+        num_cm = file.numCorrectionsMinus();
+
+        node_to_sn = new int[n];
+        for (int v = 0; v < n; v++) node_to_sn[v] = file.superNodeOf(v);
+        TIntArrayList list_members = new TIntArrayList(n), list_superedges = new TIntArrayList();
+        member_offsets = new int[supernode_count + 1];
+        superedge_offsets = new int[supernode_count + 1];
+        for (int A = 0; A < supernode_count; A++) {
+            BitReader reader = file.superNodeReader(A);
+            list_members.add(SummaryFile.readList(reader));
+            list_superedges.add(SummaryFile.readList(reader));
+            member_offsets[A + 1] = list_members.size();
+            superedge_offsets[A + 1] = list_superedges.size();
+        }
+        members = list_members.toArray();
+        superedges = list_superedges.toArray();
+
+        TIntArrayList list_plus = new TIntArrayList(), list_minus = new TIntArrayList();
+        plus_offsets = new int[n + 1];
+        minus_offsets = new int[n + 1];
+        for (int v = 0; v < n; v++) {
+            BitReader reader = file.nodeReader(v);
+            list_plus.add(SummaryFile.readList(reader));
+            list_minus.add(SummaryFile.readList(reader));
+            plus_offsets[v + 1] = list_plus.size();
+            minus_offsets[v + 1] = list_minus.size();
+        }
+        plus = list_plus.toArray();
+        minus = list_minus.toArray();
+    }
+
+    @Override
+    public int numNodes() { return n; }
+
+    @Override
+    public int numSuperNodes() { return supernode_count; }
+
+    @Override
+    public int superNodeOf(int v) {
+        return node_to_sn[v];
+    }
+
+    @Override
+    public int[] members(int A) {
+        return Arrays.copyOfRange(members, member_offsets[A], member_offsets[A + 1]);
+    }
+
+    @Override
+    public int[] superEdges(int A) {
+        return Arrays.copyOfRange(superedges, superedge_offsets[A], superedge_offsets[A + 1]);
+    }
+
+    @Override
+    public int[] correctionsPlus(int v) {
+        return Arrays.copyOfRange(plus, plus_offsets[v], plus_offsets[v + 1]);
+    }
+
+    @Override
+    public int[] correctionsMinus(int v) {
+        return Arrays.copyOfRange(minus, minus_offsets[v], minus_offsets[v + 1]);
+    }
+
+    /**
+     * 直接在 CSR 数组上二分查找，不复制列表
+     */
+    @Override
+    public boolean hasEdge(int u, int v) {
+        if (Arrays.binarySearch(minus, minus_offsets[u], minus_offsets[u + 1], v) >= 0) return false;
+        if (Arrays.binarySearch(plus, plus_offsets[u], plus_offsets[u + 1], v) >= 0) return true;
+        int A = node_to_sn[u];
+        return Arrays.binarySearch(superedges, superedge_offsets[A], superedge_offsets[A + 1], node_to_sn[v]) >= 0;
+    }
+
+    /**
+     * 直接从 CSR 数组中拼接，不为每个列表单独分配数组
+     */
+    @Override
+    public int[] successors(int v) {
+        int A = node_to_sn[v];
+        int length = plus_offsets[v + 1] - plus_offsets[v];
+        for (int i = superedge_offsets[A]; i < superedge_offsets[A + 1]; i++) {
+            int B = superedges[i];
+            length += member_offsets[B + 1] - member_offsets[B];
+        }
+        int[] candidates = new int[length];
+        int pos = 0;
+        for (int i = superedge_offsets[A]; i < superedge_offsets[A + 1]; i++) {
+            int B = superedges[i];
+            int size = member_offsets[B + 1] - member_offsets[B];
+            System.arraycopy(members, member_offsets[B], candidates, pos, size);
+            pos += size;
+        }
+        System.arraycopy(plus, plus_offsets[v], candidates, pos, plus_offsets[v + 1] - plus_offsets[v]);
+        Arrays.sort(candidates);
+        return subtract(candidates, correctionsMinus(v));
+    }
+
+    /**
+     * 把顶点对 <u[i], v[i]> 整理成对称的邻接表(CSR 形式)，每个列表按编号升序并去掉重复的元素
+     *
+     * @param u     顶点对的第一个顶点
+     * @param v     顶点对的第二个顶点
+     * @param count 顶点(或超点)的数量
+     * @return {offsets, targets}，第i个列表是 targets[offsets[i], offsets[i+1])
+     */
+    static int[][] symmetricLists(TIntArrayList u, TIntArrayList v, int count) {
+        long total = 0;
+        int[] offsets = new int[count + 1];
+        for (int i = 0; i < u.size(); i++) {
+            offsets[u.get(i) + 1]++;
+            if (u.get(i) != v.get(i)) offsets[v.get(i) + 1]++;
+        }
+        for (int i = 0; i < count; i++) total += offsets[i + 1];
+        if (total > Integer.MAX_VALUE - 8) throw new IllegalStateException("too many pairs to index: " + total);
+        for (int i = 0; i < count; i++) offsets[i + 1] += offsets[i];
+        int[] targets = new int[offsets[count]];
+        int[] pos = Arrays.copyOf(offsets, count);
+        for (int i = 0; i < u.size(); i++) {
+            int a = u.get(i), b = v.get(i);
+            targets[pos[a]++] = b;
+            if (a != b) targets[pos[b]++] = a;
+        }
+        // 排序并去重，去重后把列表向前压紧
+        int write = 0;
+        for (int i = 0; i < count; i++) {
+            int start = offsets[i], end = offsets[i + 1];
+            Arrays.sort(targets, start, end);
+            offsets[i] = write;
+            for (int j = start; j < end; j++) {
+                if (j == start || targets[j] != targets[j - 1]) targets[write++] = targets[j];
+            }
+        }
+        offsets[count] = write;
+        return new int[][]{offsets, targets};
+    }
+}
@@ -0,0 +1,166 @@
+package graph_summarization;
+
+import gnu.trove.list.array.TIntArrayList;
+import it.unimi.dsi.webgraph.ImmutableGraph;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * 生成顶点的 two-hops 邻居(一跳和两跳可达的顶点)，用于 Greedy 算法寻找候选的超点对
+ * 可以用 materialize 预先计算所有顶点的结果并以 CSR 形式保存，也可以不保存，每次查询时从图中现场生成
+ * 去重使用每个线程各自的 Visitor：一个 int[n] 的时间戳数组，换一次查询只需要把时间戳加一，不需要清零，
+ * 因此每次查询的开销只与访问到的顶点数有关，而不是 O(n)
+ */
+public class TwoHopNeighbours {
+    private final int n;
+    // 每个线程各自的图副本和去重缓冲区
+    private final ThreadLocal<ImmutableGraph> graph_copy;
+    private final ThreadLocal<Visitor> visitor;
+    // hub[w] 为真时不经过w扩展第二跳，为null时所有顶点都扩展
+    private final boolean[] hub;
+    // 预先计算的结果，顶点u的 two-hops 邻居是 targets[offsets[u], offsets[u+1])，没有预先计算时为null
+    private long[] offsets;
+    private int[] targets;
+
+    public TwoHopNeighbours(ImmutableGraph graph) {
+        this(graph, null);
+    }
+
+    /**
+     * @param graph 图
+     * @param hub   不扩展第二跳的顶点(度数极大的 hub)，经过它们的 two-hops 邻居有 deg^2 个，为null时所有顶点都扩展
+     */
+    public TwoHopNeighbours(ImmutableGraph graph, boolean[] hub) {
+        n = graph.numNodes();
+        this.hub = hub;
+        graph_copy = ThreadLocal.withInitial(graph::copy);
+        visitor = ThreadLocal.withInitial(() -> new Visitor(n));
+    }
+
+    /**
+     * 并行地预先计算所有顶点的 two-hops 邻居：先统计每个顶点的结果数量，结果总数不超过 max_entries 时再写入
+     * 统计本身和写入的代价相当，所以先用 O(m) 的上界 Σ deg(w)^2 判断，上界超过 max_entries 的图直接放弃
+     *
+     * @param pool        线程池，为null时单线程执行
+     * @param parts       并行时切分的段数
+     * @param max_entries 最多保存多少个结果，超过时不保存，之后的查询现场生成
+     * @return 是否保存了结果
+     */
+    public boolean materialize(ForkJoinPool pool, int parts, long max_entries) {
+        max_entries = Math.min(max_entries, Integer.MAX_VALUE - 8);
+        long[] counts = new long[n + 1];
+        Parallel.forRange(pool, parts, n, (part, start, end) -> {
+            ImmutableGraph g = graph_copy.get();
+            for (int w = start; w < end; w++) {
+                counts[w + 1] = hub != null && hub[w] ? g.outdegree(w) : (long) g.outdegree(w) * g.outdegree(w);
+            }
+        });
+        long bound = 0;
+        for (int w = 0; w < n; w++) bound += counts[w + 1];
+        if (bound > max_entries) return false;
+
+        Parallel.forRange(pool, parts, n, (part, start, end) -> {
+            Visitor v = visitor.get();
+            ImmutableGraph g = graph_copy.get();
+            for (int u = start; u < end; u++) {
+                v.reset();
+                counts[u + 1] = v.visit(g, u, IntUnaryOperator.identity(), hub);
+            }
+        });
+        for (int u = 0; u < n; u++) counts[u + 1] += counts[u];
+        int[] result = new int[(int) counts[n]];
+        Parallel.forRange(pool, parts, n, (part, start, end) -> {
+            Visitor v = visitor.get();
+            ImmutableGraph g = graph_copy.get();
+            for (int u = start; u < end; u++) {
+                v.reset();
+                int count = v.visit(g, u, IntUnaryOperator.identity(), hub);
+                v.touched.toArray(result, 0, (int) counts[u], count);
+            }
+        });
+        offsets = counts;
+        targets = result;
+        return true;
+    }
+
+    public boolean materialized() {
+        return targets != null;
+    }
+
+    /**
+     * 预先计算的结果总数，没有预先计算时为0
+     */
+    public long size() {
+        return targets == null ? 0 : offsets[n];
+    }
+
+    /**
+     * 集合 sources 中所有顶点的 two-hops 邻居经过 map 映射之后去重的结果，顺序不确定
+     * 例如 map 为 find 时，得到超点的 two-hops 超点邻居，可以被多个线程同时调用
+     *
+     * @param sources 顶点集合
+     * @param map     对每个邻居进行的映射
+     */
+    public int[] collect(int[] sources, IntUnaryOperator map) {
+        Visitor v = visitor.get();
+        v.reset();
+        if (targets != null) {
+            for (int u : sources) {
+                for (long i = offsets[u]; i < offsets[u + 1]; i++) v.mark(map.applyAsInt(targets[(int) i]));
+            }
+        } else {
+            ImmutableGraph g = graph_copy.get();
+            for (int u : sources) v.visit(g, u, map, hub);
+        }
+        return v.touched.toArray();
+    }
+
+    /**
+     * 每个线程的去重缓冲区，stamp[x] == current 表示x在本次查询中已经出现过
+     */
+    private static class Visitor {
+        final int[] stamp;
+        int current;
+        final TIntArrayList touched = new TIntArrayList();
+
+        Visitor(int n) {
+            stamp = new int[n];
+        }
+
+        void reset() {
+            touched.resetQuick();
+            if (++current == 0) {
+                // 时间戳用完一轮，清零后重新开始
+                Arrays.fill(stamp, 0);
+                current = 1;
+            }
+        }
+
+        void mark(int x) {
+            if (stamp[x] != current) {
+                stamp[x] = current;
+                touched.add(x);
+            }
+        }
+
+        /**
+         * 标记顶点u的 two-hops 邻居(不包括u本身)经过 map 映射之后的结果，返回本次查询到目前为止标记的数量
+         * hub 不为null时，不经过 hub[w] 为真的邻居w扩展第二跳
+         */
+        int visit(ImmutableGraph g, int u, IntUnaryOperator map, boolean[] hub) {
+            int[] neighbours = Arrays.copyOf(g.successorArray(u), g.outdegree(u));
+            for (int w : neighbours) {
+                if (w != u) mark(map.applyAsInt(w));
+                if (hub != null && hub[w]) continue;
+                int[] second = g.successorArray(w);
+                int second_degree = g.outdegree(w);
+                for (int i = 0; i < second_degree; i++) {
+                    if (second[i] != u) mark(map.applyAsInt(second[i]));
+                }
+            }
+            return touched.size();
+        }
+    }
+}
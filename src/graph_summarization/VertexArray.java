@@ -0,0 +1,117 @@
+package graph_summarization;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 每个顶点(超点编号)一个 int 的数组，用来保存 S、I、J 等贯穿整个运行过程的状态
+ * 默认放在堆上；放到堆外时按 2^28 个 int(1GB) 分段，由 ByteBuffer.allocateDirect 分配，或者映射到给定目录下的临时文件，
+ * 这样数组既不占用堆，也不会被 GC 扫描和复制，映射文件时还可以超过物理内存，由操作系统换页
+ * 长度和下标是 long，可以超过 2^31(如每个超点若干个值的矩阵)；堆上超过 Java 数组上限时同样分段
+ * 不同的下标可以被多个线程同时读写，与普通数组的可见性规则相同
+ */
+public final class VertexArray {
+    private static final int CHUNK_SHIFT = 28;
+    private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+    // Java 数组长度的上限
+    private static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+    private final long length;
+    // 堆上的数组，分段时为null
+    private final int[] heap;
+    // 超过 Java 数组上限或者放在堆外时的各段，否则为null
+    private final IntBuffer[] chunks;
+    private final boolean off_heap;
+
+    private VertexArray(long length, int[] heap, IntBuffer[] chunks, boolean off_heap) {
+        this.length = length;
+        this.heap = heap;
+        this.chunks = chunks;
+        this.off_heap = off_heap;
+    }
+
+    /**
+     * 分配一个堆上的数组
+     */
+    public static VertexArray onHeap(long length) {
+        if (length <= MAX_ARRAY_LENGTH) return new VertexArray(length, new int[(int) length], null, false);
+        IntBuffer[] chunks = new IntBuffer[chunkCount(length)];
+        for (int c = 0; c < chunks.length; c++) chunks[c] = IntBuffer.wrap(new int[chunkLength(length, c)]);
+        return new VertexArray(length, null, chunks, false);
+    }
+
+    /**
+     * 分配一个堆外的数组，初始值全为0
+     *
+     * @param length    数组长度
+     * @param directory 映射文件所在的目录，为null时使用 allocateDirect 分配的内存
+     */
+    public static VertexArray offHeap(long length, String directory) throws IOException {
+        IntBuffer[] chunks = new IntBuffer[chunkCount(length)];
+        for (int c = 0; c < chunks.length; c++)
+            chunks[c] = allocate((long) chunkLength(length, c) * Integer.BYTES, directory).asIntBuffer();
+        return new VertexArray(length, null, chunks, true);
+    }
+
+    private static int chunkCount(long length) {
+        return (int) ((length + CHUNK_MASK) >>> CHUNK_SHIFT);
+    }
+
+    private static int chunkLength(long length, int c) {
+        return (int) Math.min(CHUNK_MASK + 1, length - ((long) c << CHUNK_SHIFT));
+    }
+
+    private static ByteBuffer allocate(long bytes, String directory) throws IOException {
+        if (directory == null) return ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder());
+        File file = File.createTempFile("vertex", ".bin", new File(directory));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(bytes);
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes).order(ByteOrder.nativeOrder());
+        } finally {
+            // 映射在文件删除之后仍然有效，不能立即删除的系统在退出时删除
+            if (!file.delete()) file.deleteOnExit();
+        }
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public boolean isOffHeap() {
+        return off_heap;
+    }
+
+    public int get(int i) {
+        if (heap != null) return heap[i];
+        return chunks[i >>> CHUNK_SHIFT].get(i & CHUNK_MASK);
+    }
+
+    public void set(int i, int value) {
+        if (heap != null) heap[i] = value;
+        else chunks[i >>> CHUNK_SHIFT].put(i & CHUNK_MASK, value);
+    }
+
+    public int get(long i) {
+        if (heap != null) return heap[(int) i];
+        return chunks[(int) (i >>> CHUNK_SHIFT)].get((int) (i & CHUNK_MASK));
+    }
+
+    public void set(long i, int value) {
+        if (heap != null) heap[(int) i] = value;
+        else chunks[(int) (i >>> CHUNK_SHIFT)].put((int) (i & CHUNK_MASK), value);
+    }
+
+    /**
+     * 把 other 的内容复制到这个数组，两者长度必须相同
+     */
+    public void copyFrom(VertexArray other) {
+        if (other.length != length) throw new IllegalArgumentException("length " + other.length + " != " + length);
+        for (long i = 0; i < length; i++) set(i, other.get(i));
+    }
+}
@@ -0,0 +1,48 @@
+package graph_summarization;
+
+import java.util.Arrays;
+
+/**
+ * 超点的邻居边计数向量，用来替代 HashMap<Integer, Integer>
+ * ids 按顶点编号升序排列，counts 与之一一对应，即超点与顶点 ids[i] 之间存在 counts[i] 条边
+ * 有序存储使得 Jaccard Similarity 和 Saving 的计算都可以变成线性的归并扫描
+ */
+public class WeightVector {
+    int[] ids;
+    int[] counts;
+    int size;
+    // 所有 counts 的和，即超点的边数
+    long total;
+
+    public WeightVector(int[] ids, int[] counts, int size) {
+        this.ids = ids;
+        this.counts = counts;
+        this.size = size;
+        for (int i = 0; i < size; i++) total += counts[i];
+    }
+
+    /**
+     * 由一组(可以重复的)邻居顶点构造计数向量，会对 neighbours 的前 length 个元素原地排序
+     *
+     * @param neighbours 所有成员顶点的邻居拼接在一起的数组
+     * @param length     有效元素的个数
+     * @return
+     */
+    public static WeightVector fromNeighbours(int[] neighbours, int length) {
+        Arrays.sort(neighbours, 0, length);
+        int distinct = 0;
+        for (int i = 0; i < length; i++) {
+            if (i == 0 || neighbours[i] != neighbours[i - 1]) distinct++;
+        }
+        int[] ids = new int[distinct];
+        int[] counts = new int[distinct];
+        int k = -1;
+        for (int i = 0; i < length; i++) {
+            if (i == 0 || neighbours[i] != neighbours[i - 1]) {
+                ids[++k] = neighbours[i];
+            }
+            counts[k]++;
+        }
+        return new WeightVector(ids, counts, distinct);
+    }
+}